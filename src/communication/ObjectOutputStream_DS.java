@@ -49,4 +49,12 @@ public class ObjectOutputStream_DS {
 			throw new IOException("Trying to write into a closed ObjectOutputStream_DS");
 		}
 	}
+
+	/**
+	 * Forgets the objects already written, so the stream can be used
+	 * for a new session (objects are written again instead of referenced).
+	 */
+	public void reset() throws IOException{
+		out.reset();
+	}
 }
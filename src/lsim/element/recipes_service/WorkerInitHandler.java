@@ -20,6 +20,7 @@
 
 package lsim.element.recipes_service;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 //import java.io.ObjectOutputStream;
@@ -103,6 +104,73 @@ public class WorkerInitHandler implements HandlerInitWorker {
 		// * false: Servers running in different computers (or more than one Server in a single computer but
 		// 			this computer having the same internal and external IP address)
 		SimulationData.getInstance().setLocalExecution(((String)params.get("executionMode")).equals("localMode"));
+
+		// param 14: "compaction": On to replace in the log the AddOperations of removed recipes
+		// by tombstones before they are sent to partners. Default value: Off
+		serverData.setCompaction("On".equals(params.get("compaction")));
+
+		// param 15: "persistence": On to store the TSAE data structures in dataFolder (checkpointed
+		// every checkpointPeriod seconds) and reload them when the Server is restarted. Default value: Off
+		if ("On".equals(params.get("persistence"))){
+			serverData.setDataFolder(new File((String)params.get("dataFolder")));
+			serverData.setCheckpointPeriod(Long.parseLong((String)params.get("checkpointPeriod"))*1000);
+		}
+
+		// param 16: "stability": Gossip to detect the operations received by all Servers with
+		// an aggregate gossiped by epochs instead of the ack matrix. Default value: Matrix
+		if (params.get("stability") != null){
+			serverData.setStabilityMode((String)params.get("stability"));
+		}
+
+		// param 17: "connectionPooling": On to keep the connection to each partner open and run
+		// the next TSAE sessions with it on the same connection. Default value: Off
+		serverData.setConnectionPooling("On".equals(params.get("connectionPooling")));
+
+		// params 18 and 19: "batchSize" and "batchBytes": maximum number of operations and
+		// (approximate) bytes sent in a single message during a TSAE session.
+		// Default values: 1 (one message per operation) and 65536
+		if (params.get("batchSize") != null){
+			serverData.setBatchSize(Integer.parseInt((String)params.get("batchSize")));
+		}
+		if (params.get("batchBytes") != null){
+			serverData.setBatchBytes(Integer.parseInt((String)params.get("batchBytes")));
+		}
+
+		// param 20: "sessionProtocol": Pipelined to exchange summaries first and then send the
+		// operations in both directions at the same time. Default value: Sequential
+		if (params.get("sessionProtocol") != null){
+			serverData.setSessionProtocol((String)params.get("sessionProtocol"));
+		}
+
+		// param 21: "sessionParallelism": maximum number of TSAE sessions (with different partners)
+		// that a Server originates at the same time. Default value: 1 (one after another)
+		if (params.get("sessionParallelism") != null){
+			serverData.setSessionParallelism(Integer.parseInt((String)params.get("sessionParallelism")));
+		}
+
+		// params 22 and 23: "partnerSide": Selector to wait for the connections from originators with
+		// a selector and serve their sessions with "partnerWorkers" workers. Default value: Threads
+		// (a thread for each connection)
+		if (params.get("partnerSide") != null){
+			serverData.setPartnerSide((String)params.get("partnerSide"));
+		}
+		if (params.get("partnerWorkers") != null){
+			serverData.setPartnerWorkers(Integer.parseInt((String)params.get("partnerWorkers")));
+		}
+
+		// param 24: "sessionThreads": Virtual to run every TSAE session (originator and partner
+		// sides) on a virtual thread (requires Java 21). Default value: Platform
+		serverData.setVirtualThreads("Virtual".equals(params.get("sessionThreads")));
+
+		// params 25 and 26: "partnerSessions": maximum number of TSAE sessions served at the same time
+		// as partner; up to "partnerQueue" more wait to be served and the rest are rejected with a busy
+		// message (the originator backs off). Default values: 0 (no limit) and 16
+		if (params.get("partnerSessions") != null){
+			serverData.setPartnerSessions(Integer.parseInt((String)params.get("partnerSessions")));
+		}
+		if (params.get("partnerQueue") != null){
+			serverData.setPartnerQueue(Integer.parseInt((String)params.get("partnerQueue")));
+		}
 		
 		
 		//         this computer having the same internal and external IP address) 
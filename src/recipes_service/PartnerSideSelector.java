@@ -0,0 +1,222 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
+import recipes_service.tsae.sessions.ConnectionPool;
+import recipes_service.tsae.sessions.SessionThreads;
+import recipes_service.tsae.sessions.TSAESessionPartnerSide;
+
+/**
+ * Event-driven partner side: a single thread waits on a Selector for new
+ * connections from originators and for the next session on the
+ * connections that are idle between sessions (pooled connections, see
+ * ConnectionPool), and a small fixed pool of workers serves the sessions.
+ *
+ * A connection only takes a worker while one of its sessions is running:
+ * the session itself runs in blocking mode (the messages are objects read
+ * and written with ObjectInputStream_DS and ObjectOutputStream_DS); once
+ * it has finished the connection is given back to the Selector in
+ * non-blocking mode. Connections idle for more than IDLE_TIMEOUT are
+ * closed. With virtual session threads, each session runs on a virtual
+ * thread of its own instead of on the pool of workers.
+ */
+class PartnerSideSelector {
+
+	// maximum time the selector waits before checking for the end of the Server (ms)
+	private static final long SELECT_TIMEOUT = 1000;
+
+	/**
+	 * A connection from an originator
+	 */
+	private final class Connection implements Runnable {
+		private final SocketChannel channel;
+		private final TSAESessionPartnerSide partner;
+		private long idleSince;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			// (a session must not wait for admission on a worker of the fixed pool)
+			this.partner = new TSAESessionPartnerSide(channel.socket(), serverData, serverData.getSessionThreads().isVirtual());
+		}
+
+		// serves one session on a worker
+		public void run() {
+			if (!partner.serveSession()) {
+				return; // the connection has been closed
+			}
+			try {
+				channel.configureBlocking(false);
+			} catch (IOException e) {
+				partner.close();
+				return;
+			}
+			idleSince = System.currentTimeMillis();
+			parked.add(this);
+			selector.wakeup();
+		}
+	}
+
+	private final ServerSocketChannel serverChannel;
+	private final ServerData serverData;
+	private final Selector selector;
+	private final ExecutorService workers;
+
+	// connections whose session has finished, to be registered in the selector
+	private final Queue<Connection> parked = new ConcurrentLinkedQueue<Connection>();
+
+	PartnerSideSelector(ServerSocketChannel serverChannel, ServerData serverData, int numWorkers) throws IOException {
+		this.serverChannel = serverChannel;
+		this.serverData = serverData;
+		this.selector = Selector.open();
+		SessionThreads threads = serverData.getSessionThreads();
+		if (threads.isVirtual()) {
+			// every session runs on a virtual thread of its own
+			this.workers = threads.perTaskExecutor("TSAEPartnerSideWorker");
+		} else {
+			this.workers = Executors.newFixedThreadPool(numWorkers, threads.factory("TSAEPartnerSideWorker"));
+		}
+	}
+
+	/**
+	 * Accepts and serves TSAE sessions until the Server ends
+	 */
+	void serve() {
+		try {
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			long lastIdleCheck = System.currentTimeMillis();
+			while (!serverData.end()) {
+				if (selector.selectedKeys().isEmpty()) {
+					selector.select(SELECT_TIMEOUT);
+				}
+				register();
+
+				// connections with a new session (or closed by the originator)
+				List<Connection> ready = new ArrayList<Connection>();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						SocketChannel channel = serverChannel.accept();
+						if (channel != null) {
+							// (accepted channels are in blocking mode)
+							execute(new Connection(channel));
+						}
+					} else if (key.isReadable()) {
+						key.cancel();
+						ready.add((Connection) key.attachment());
+					}
+				}
+				if (!ready.isEmpty()) {
+					// deregisters the cancelled keys, so the channels can be blocking again
+					selector.selectNow();
+					for (Connection connection : ready) {
+						try {
+							connection.channel.configureBlocking(true);
+							execute(connection);
+						} catch (IOException e) {
+							connection.partner.close();
+						}
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastIdleCheck >= SELECT_TIMEOUT) {
+					closeIdle(now);
+					lastIdleCheck = now;
+				}
+			}
+		} catch (IOException e) {
+			LSimLogger.log(Level.ERROR, e.getMessage());
+			e.printStackTrace();
+		} finally {
+			workers.shutdown();
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					((Connection) key.attachment()).partner.close();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void execute(Connection connection) {
+		try {
+			workers.execute(connection);
+		} catch (RejectedExecutionException e) {
+			connection.partner.close();
+		}
+	}
+
+	/**
+	 * Registers in the selector the connections whose session has finished
+	 */
+	private void register() {
+		Connection connection;
+		while ((connection = parked.poll()) != null) {
+			try {
+				connection.channel.register(selector, SelectionKey.OP_READ, connection);
+			} catch (ClosedChannelException e) {
+				connection.partner.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes the connections that have been idle for more than IDLE_TIMEOUT
+	 */
+	private void closeIdle(long now) {
+		for (SelectionKey key : selector.keys()) {
+			if (!key.isValid() || !(key.attachment() instanceof Connection)) {
+				continue;
+			}
+			Connection connection = (Connection) key.attachment();
+			if (now - connection.idleSince > ConnectionPool.IDLE_TIMEOUT) {
+				key.cancel();
+				connection.partner.close();
+			}
+		}
+	}
+}
@@ -20,13 +20,19 @@
 
 package recipes_service;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Vector;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
 import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
@@ -40,11 +46,22 @@ import recipes_service.data.OperationType;
 import recipes_service.data.Recipe;
 import recipes_service.data.Recipes;
 import recipes_service.data.RemoveOperation;
+import recipes_service.data.TombstoneOperation;
+import recipes_service.tsae.data_structures.GossipStability;
 import recipes_service.tsae.data_structures.Log;
+import recipes_service.tsae.data_structures.Participants;
 import recipes_service.tsae.data_structures.Timestamp;
 import recipes_service.tsae.data_structures.TimestampMatrix;
 import recipes_service.tsae.data_structures.TimestampVector;
+import recipes_service.tsae.persistence.StateStore;
+import recipes_service.tsae.persistence.StateStore.Checkpoint;
+import recipes_service.tsae.sessions.ConnectionPool;
+import recipes_service.tsae.sessions.DeltaExchange;
+import recipes_service.tsae.sessions.SessionAdmission;
+import recipes_service.tsae.sessions.SessionStats;
+import recipes_service.tsae.sessions.SessionThreads;
 import recipes_service.tsae.sessions.TSAESessionOriginatorSide;
+import util.Serializer;
 /**
  * @author Joan-Manuel Marques
  * December 2012
@@ -91,11 +108,64 @@ public class ServerData {
 	// TODO: esborrar aquesta estructura de dades
 	// tombstones: timestamp of removed operations
 	//List<Timestamp> tombstones = new Vector<Timestamp>();
-	private final List<Timestamp> tombstones = new CopyOnWriteArrayList<>();
+	private final Set<Timestamp> tombstones = ConcurrentHashMap.newKeySet();
 
 	// end: true when program should end; false otherwise
 	private boolean end = false;
 
+	// persistent mode: folder where the state is stored (null: persistence deactivated)
+	private File dataFolder = null;
+	// period between checkpoints of the TSAE data structures (milliseconds)
+	private long checkpointPeriod = 30000;
+	private StateStore store = null;
+	private Timer checkpointTimer;
+
+	// compaction: true to replace in the log the AddOperations of removed recipes by tombstones
+	private boolean compaction = false;
+
+	// summary and ack exchanged with each partner (delta-encoded)
+	private DeltaExchange exchange;
+
+	// stability detection: "Matrix" (ack matrix) or "Gossip" (see GossipStability)
+	private String stabilityMode = "Matrix";
+	// gossip stability mode: stability information (null in matrix mode)
+	private GossipStability stability;
+
+	// connectionPooling: true to keep the connections to partners open for the next sessions
+	private boolean connectionPooling = false;
+	// connections to partners used by the originator side of TSAE sessions
+	private ConnectionPool connectionPool;
+
+	// operations sent in a single message during TSAE sessions: at most batchSize
+	// operations and (approximately) batchBytes bytes (batchSize 1: one message per operation)
+	private int batchSize = 1;
+	private int batchBytes = 65536;
+
+	// sessionProtocol: "Sequential" (each side sends its operations in turn) or "Pipelined"
+	// (summaries are exchanged first and then both sides send their operations at the same time)
+	private String sessionProtocol = "Sequential";
+
+	// sessionParallelism: maximum number of sessions with partners run at the same time by
+	// the originator side (1: the sessions of a round run one after another)
+	private int sessionParallelism = 1;
+
+	// partnerSide: "Threads" (a thread for each connection from an originator) or "Selector"
+	// (connections are multiplexed with a selector and sessions are served by partnerWorkers workers)
+	private String partnerSide = "Threads";
+	private int partnerWorkers = 8;
+
+	// sessionThreads: "Platform" or "Virtual" (Java 21) threads to run TSAE sessions
+	private SessionThreads sessionThreads = new SessionThreads(false);
+	// statistics of the sessions run as originator and as partner
+	private final SessionStats originatorStats = new SessionStats("Originator");
+	private final SessionStats partnerStats = new SessionStats("Partner");
+
+	// partnerSessions: maximum number of TSAE sessions served at the same time as partner (0: no
+	// limit); up to partnerQueue more wait to be served and the rest get a busy reply
+	private int partnerSessions = 0;
+	private int partnerQueue = 16;
+	private SessionAdmission partnerAdmission = new SessionAdmission(0, 0);
+
 	public ServerData(){
 	}
 
@@ -105,10 +175,26 @@ public class ServerData {
 	 */
 	public void startTSAE(Hosts participants){
 		this.participants = participants;
+		// dense host indices used by the TSAE data structures and messages
+		Participants.register(participants.getIds());
 		this.log = new Log(participants.getIds());
 		this.summary = new TimestampVector(participants.getIds());
 		this.ack = new TimestampMatrix(participants.getIds());
 
+		if (dataFolder != null){
+			// reload the state stored before a restart (if any)
+			recover();
+		}
+		if (isGossipStability()){
+			// the ack matrix is not maintained (it is left empty)
+			this.ack = new TimestampMatrix(new ArrayList<String>());
+			this.stability = new GossipStability(summary, id);
+		}
+		log.setCompaction(compaction);
+		exchange = new DeltaExchange(id);
+		connectionPool = new ConnectionPool(connectionPooling);
+		partnerAdmission = new SessionAdmission(partnerSessions, partnerQueue);
+
 		tsae = new TSAESessionOriginatorSide(this);
         tsaeSessionTimer = new Timer();
 		tsaeSessionTimer.scheduleAtFixedRate(tsae, sessionDelay, sessionPeriod);
@@ -118,6 +204,24 @@ public class ServerData {
 		if (tsaeSessionTimer != null) {
             tsaeSessionTimer.cancel();
         }
+		if (tsae != null) {
+			tsae.shutdown();
+		}
+		LSimLogger.log(Level.INFO, "[" + id + "] " + originatorStats + " (" + (sessionThreads.isVirtual() ? "virtual" : "platform") + " threads)");
+		LSimLogger.log(Level.INFO, "[" + id + "] " + partnerStats);
+		LSimLogger.log(Level.INFO, "[" + id + "] " + partnerAdmission);
+		if (connectionPool != null) {
+			connectionPool.close();
+		}
+		if (checkpointTimer != null) {
+			checkpointTimer.cancel();
+			checkpoint();
+			try {
+				store.close();
+			} catch (IOException e) {
+				LSimLogger.log(Level.WARN, "Unable to close the journal: " + e.getMessage());
+			}
+		}
 	}
 
 	public boolean end(){
@@ -138,7 +242,7 @@ public class ServerData {
 	// ******************************
 	// *** add and remove recipes
 	// ******************************
-	public void addRecipe(String recipeTitle, String recipe) {
+	public synchronized void addRecipe(String recipeTitle, String recipe) {
 		if (recipeTitle == null || recipe == null) {
 			LSimLogger.log(Level.WARN, "Attempted to add a recipe with null values: title=" + recipeTitle + ", recipe=" + recipe);
 			return;
@@ -149,7 +253,10 @@ public class ServerData {
 		Operation op = new AddOperation(rcpe, timestamp);
 
 		log.add(op);
+		journal(op);
 		summary.updateTimestamp(timestamp);
+		// the own row of the ack is a copy of the summary (see TimestampMatrix.update)
+		ack.update(id, summary);
 		recipes.add(rcpe);
 
 		LSimLogger.log(Level.INFO, String.format("Recipe added: Title='%s', Author='%s', Timestamp=%s", recipeTitle, id, timestamp));
@@ -161,7 +268,9 @@ public class ServerData {
 			Timestamp timestamp = nextTimestamp();
 			RemoveOperation removeOp = new RemoveOperation(recipeTitle, removedRecipe.getTimestamp(), timestamp);
 			log.add(removeOp);
+			journal(removeOp);
 			summary.updateTimestamp(timestamp);
+			ack.update(id, summary);
 			tombstones.add(removedRecipe.getTimestamp());
 			recipes.remove(recipeTitle);
 			LSimLogger.log(Level.INFO, "Recipe removed: " + recipeTitle);
@@ -170,20 +279,152 @@ public class ServerData {
 		}
 	}
 
-	private synchronized void purgeTombstones() {
+	/**
+	 * Forgets the removals of recipes whose add is stable: it has been received by
+	 * all the participants (also by this Server), so it can not arrive late anymore.
+	 * The tombstones are a concurrent set: no lock is needed.
+	 */
+	private void purgeTombstones() {
 		if (ack == null) {
 			LSimLogger.log(Level.WARN, "Attempted to purge tombstones with null ACK structure.");
 			return;
 		}
 
-		TimestampVector minAckVector = ack.minTimestampVector();
-		tombstones.removeIf(ts -> {
-			Timestamp lastAck = minAckVector.getLast(ts.getHostid());
-			return lastAck != null && ts.compare(lastAck) <= 0;
-		});
+		tombstones.removeIf(ts -> ts.getSeqnumber() <= stableSeqnumber(ts.getHostid()));
+	}
+
+	// ******************************
+	// *** stability
+	// ******************************
+
+	public boolean isGossipStability(){
+		return "Gossip".equalsIgnoreCase(stabilityMode);
+	}
+
+	/**
+	 * @param host
+	 * @return last sequence number of host received by all the participants,
+	 * according to the ack matrix or to the gossiped stability information
+	 */
+	private long stableSeqnumber(String host){
+		if (stability != null){
+			return stability.stableSeqnumber(host);
+		}
+		return ack.minSeqnumber(host);
+	}
+
+	/**
+	 * @return the stability information to send in a TSAE session
+	 * (null in matrix mode: it is carried by the ack)
+	 */
+	public GossipStability getStabilityToSend(){
+		return stability == null ? null : stability.copy();
+	}
+
+	/**
+	 * Merges the stability information received from a partner
+	 * (ignored in matrix mode).
+	 */
+	public void mergeStability(GossipStability received){
+		if (stability != null){
+			stability.merge(received);
+		}
+	}
+
+	/**
+	 * Purges the log of the operations received by all the participants
+	 */
+	public void purgeLog(){
+		if (stability != null){
+			log.purgeLog(stability.getStable());
+		} else {
+			log.purgeLog(ack);
+		}
+		// same guarantee for the tombstones of removed recipes
+		purgeTombstones();
 	}
 
 
+	// ******************************
+	// *** persistence
+	// ******************************
+
+	/**
+	 * Reloads the last checkpoint and replays the operations journaled
+	 * after it. Afterwards starts journaling and periodic checkpoints.
+	 */
+	private void recover(){
+		StateStore store = new StateStore(new File(dataFolder, id.replaceAll("[^A-Za-z0-9._-]", "_")));
+		try {
+			Checkpoint checkpoint = store.loadCheckpoint();
+			if (checkpoint != null){
+				this.log = checkpoint.getLog();
+				this.summary = checkpoint.getSummary();
+				this.ack = checkpoint.getAck();
+				this.recipes = checkpoint.getRecipes();
+				this.tombstones.addAll(checkpoint.getTombstones());
+			}
+			List<Operation> journaled = store.loadJournal(checkpoint);
+			for (Operation op : journaled){
+				execOperation(op);
+			}
+			// continue timestamping after the last operation issued before the restart
+			Timestamp last = summary.getLast(id);
+			if (last != null){
+				seqnum.accumulateAndGet(last.getSeqnumber(), Math::max);
+			}
+			store.open(checkpoint);
+			this.store = store;
+			LSimLogger.log(Level.INFO, "Recovered state from " + dataFolder + ": checkpoint " + (checkpoint != null) + ", " + journaled.size() + " journaled operations");
+		} catch (IOException e) {
+			LSimLogger.log(Level.ERROR, "Unable to recover the stored state: " + e.getMessage());
+			return;
+		}
+
+		checkpointTimer = new Timer();
+		checkpointTimer.scheduleAtFixedRate(new TimerTask(){
+			public void run(){
+				checkpoint();
+			}
+		}, checkpointPeriod, checkpointPeriod);
+	}
+
+	/**
+	 * Stores a checkpoint of the TSAE data structures and recipes.
+	 * The journal is rotated atomically with taking the state, so the
+	 * checkpoint covers exactly the journal generations older than it.
+	 */
+	public void checkpoint(){
+		if (store == null){
+			return;
+		}
+		try {
+			Checkpoint checkpoint;
+			synchronized (this) {
+				// only immutable snapshots and copies are taken while holding the lock
+				// (the log's ones share its operations: O(hosts))
+				checkpoint = new Checkpoint(store.rotate(), log.snapshot(), summary.snapshot(), ack.snapshot(), recipes.clone(), tombstones);
+			}
+			// serialized without blocking the sessions and the local operations
+			int generation = checkpoint.getJournalGeneration();
+			store.store(generation, Serializer.serialize(checkpoint));
+			LSimLogger.log(Level.DEBUG, "Checkpoint stored (journal generation " + generation + ")");
+		} catch (IOException e) {
+			LSimLogger.log(Level.WARN, "Unable to store a checkpoint: " + e.getMessage());
+		}
+	}
+
+	private void journal(Operation op){
+		if (store == null){
+			return;
+		}
+		try {
+			store.append(op);
+		} catch (IOException e) {
+			LSimLogger.log(Level.WARN, "Unable to journal operation " + op + ": " + e.getMessage());
+		}
+	}
+
 	// ****************************************************************************
 	// *** operations to get the TSAE data structures. Used to send to evaluation
 	// ****************************************************************************
@@ -199,6 +440,12 @@ public class ServerData {
 	public Recipes getRecipes(){
 		return recipes;
 	}
+	public DeltaExchange getDeltaExchange(){
+		return exchange;
+	}
+	public ConnectionPool getConnectionPool(){
+		return connectionPool;
+	}
 
 	// ******************************
 	// *** getters and setters
@@ -229,9 +476,84 @@ public class ServerData {
 	public void setSessionDelay(long sessionDelay) {
 		this.sessionDelay = sessionDelay;
 	}
+	public long getSessionPeriod() {
+		return sessionPeriod;
+	}
 	public void setSessionPeriod(long sessionPeriod) {
 		this.sessionPeriod = sessionPeriod;
 	}
+	public void setCompaction(boolean compaction) {
+		this.compaction = compaction;
+	}
+	public void setStabilityMode(String stabilityMode) {
+		this.stabilityMode = stabilityMode;
+	}
+	public void setConnectionPooling(boolean connectionPooling) {
+		this.connectionPooling = connectionPooling;
+	}
+	public boolean isPipelinedSessions() {
+		return "Pipelined".equals(sessionProtocol);
+	}
+	public void setSessionProtocol(String sessionProtocol) {
+		this.sessionProtocol = sessionProtocol;
+	}
+	public SessionThreads getSessionThreads() {
+		return sessionThreads;
+	}
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.sessionThreads = new SessionThreads(virtualThreads);
+	}
+	public SessionStats getOriginatorStats() {
+		return originatorStats;
+	}
+	public SessionStats getPartnerStats() {
+		return partnerStats;
+	}
+	public boolean isSelectorPartnerSide() {
+		return "Selector".equals(partnerSide);
+	}
+	public void setPartnerSide(String partnerSide) {
+		this.partnerSide = partnerSide;
+	}
+	public int getPartnerWorkers() {
+		return partnerWorkers;
+	}
+	public void setPartnerWorkers(int partnerWorkers) {
+		this.partnerWorkers = partnerWorkers;
+	}
+	public SessionAdmission getPartnerAdmission() {
+		return partnerAdmission;
+	}
+	public void setPartnerSessions(int partnerSessions) {
+		this.partnerSessions = partnerSessions;
+	}
+	public void setPartnerQueue(int partnerQueue) {
+		this.partnerQueue = partnerQueue;
+	}
+	public int getSessionParallelism() {
+		return sessionParallelism;
+	}
+	public void setSessionParallelism(int sessionParallelism) {
+		this.sessionParallelism = sessionParallelism;
+	}
+	public int getBatchSize() {
+		return batchSize;
+	}
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+	public int getBatchBytes() {
+		return batchBytes;
+	}
+	public void setBatchBytes(int batchBytes) {
+		this.batchBytes = batchBytes;
+	}
+	public void setDataFolder(File dataFolder) {
+		this.dataFolder = dataFolder;
+	}
+	public void setCheckpointPeriod(long checkpointPeriod) {
+		this.checkpointPeriod = checkpointPeriod;
+	}
 	public TSAESessionOriginatorSide getTSAESessionOriginatorSide(){
 		return this.tsae;
 	}
@@ -270,41 +592,130 @@ public class ServerData {
 	// *** PERS
 	// *******************
 
-	// Executes the given operation on the server data
-	public void execOperation(Operation op) {
+	/**
+	 * Executes an operation received from a partner on the server data.
+	 * The operation is first added to the log: operations that have
+	 * already been logged (or that are out of order) are rejected there
+	 * and not applied again.
+	 *
+	 * @param op operation to execute
+	 * @return true if the operation was applied, false if it was rejected
+	 */
+	public boolean execOperation(Operation op) {
+		Timestamp timestamp = apply(op);
+		if (timestamp == null) {
+			return false;
+		}
+		// Update the summary with the timestamp of the operation
+		this.summary.updateTimestamp(timestamp);
+		// Update the acknowledgment matrix with the current summary
+		this.ack.update(id, summary);
+		return true;
+	}
+
+	/**
+	 * Executes a group of operations received from a partner (group commit).
+	 * Operations already covered by the summary are skipped without taking
+	 * any lock; the rest are applied in a single critical section, with one
+	 * update of the summary and the ack for the whole group.
+	 *
+	 * @param ops operations received, in the order they were sent
+	 * @return number of operations applied (the rest were already known or rejected)
+	 */
+	public int execOperations(List<Operation> ops) {
+		// (the summary is read without lock: it only grows)
+		List<Operation> pending = new ArrayList<Operation>(ops.size());
+		for (Operation op : ops) {
+			if (op == null || op.getTimestamp().getSeqnumber() > summary.getLastSeqnumber(op.getTimestamp().getHostid())) {
+				pending.add(op);
+			}
+		}
+		if (pending.isEmpty()) {
+			return 0;
+		}
+		int applied = 0;
+		synchronized (this) {
+			// last timestamp applied of each host (operations of a host arrive in order)
+			Map<String, Timestamp> last = new HashMap<String, Timestamp>();
+			for (Operation op : pending) {
+				Timestamp timestamp = apply(op);
+				if (timestamp != null) {
+					last.put(timestamp.getHostid(), timestamp);
+					applied++;
+				}
+			}
+			if (applied > 0) {
+				for (Timestamp timestamp : last.values()) {
+					this.summary.updateTimestamp(timestamp);
+				}
+				this.ack.update(id, summary);
+			}
+		}
+		return applied;
+	}
+
+	/**
+	 * Adds an operation received from a partner to the log and applies it
+	 * to the recipes (the summary and the ack are updated by the caller).
+	 *
+	 * @param op operation to apply
+	 * @return timestamp to update the summary with, or null if the operation was rejected
+	 */
+	private Timestamp apply(Operation op) {
 		// Check if the operation is null and log a warning if so
 		if (op == null) {
 			LSimLogger.log(Level.WARN, "Attempted to execute a null operation.");
-			return;
+			return null;
 		}
 
 		// Check if the operation is an AddOperation
 		if (op instanceof AddOperation) {
+			// Add the operation to the log; skip it if it is already known
+			if (!this.log.add(op)) {
+				return null;
+			}
+			journal(op);
 			// Cast the operation to AddOperation
 			AddOperation addOp = (AddOperation) op;
 			// Create a new Recipe object from the AddOperation
 			Recipe rcpe = new Recipe(addOp.getRecipe().getTitle(), addOp.getRecipe().getRecipe(), addOp.getRecipe().getAuthor(), addOp.getRecipe().getTimestamp());
-			// Add the new recipe to the recipes list
-			this.recipes.add(rcpe);
-			// Update the summary with the timestamp of the added recipe
-			this.summary.updateTimestamp(addOp.getRecipe().getTimestamp());
-			// Add the operation to the log
-			this.log.add(op);
-			// Update the acknowledgment matrix with the current summary
-			this.ack.update(id, summary);
+			// Add the new recipe to the recipes list, unless its removal
+			// (from another host) has been received before it
+			if (!tombstones.contains(rcpe.getTimestamp())) {
+				this.recipes.add(rcpe);
+			}
+			// the summary advances to the timestamp of the added recipe
+			return addOp.getRecipe().getTimestamp();
 		} 
 		// Check if the operation is a RemoveOperation
 		else if (op instanceof RemoveOperation) {
+			// Add the operation to the log; skip it if it is already known
+			if (!this.log.add(op)) {
+				return null;
+			}
+			journal(op);
 			// Cast the operation to RemoveOperation
 			RemoveOperation removeOp = (RemoveOperation) op;
-			// Remove the recipe with the specified title
-			removeRecipe(removeOp.getRecipeTitle());
-			// Update the acknowledgment matrix with the current summary
-			ack.update(id, summary);
+			// Apply the remote removal with its own timestamp (removeRecipe
+			// would timestamp a new local operation instead)
+			tombstones.add(removeOp.getRecipeTimestamp());
+			recipes.remove(removeOp.getRecipeTitle());
+			return removeOp.getTimestamp();
 		} 
+		// Check if the operation is a compacted AddOperation (its recipe has already been removed)
+		else if (op instanceof TombstoneOperation) {
+			// Add the operation to the log; skip it if it is already known
+			if (!this.log.add(op)) {
+				return null;
+			}
+			journal(op);
+			// Nothing to add to the recipes: only the summary advances
+			return op.getTimestamp();
+		}
 		// Log a warning if the operation type is unknown
 		else {
 			LSimLogger.log(Level.WARN, "Unknown operation type executed: " + op.getClass().getName());
+			return null;
 		}
 	}
 
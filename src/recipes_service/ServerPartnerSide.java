@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 
 import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
 import lsim.library.api.LSimLogger;
@@ -39,6 +40,8 @@ public class ServerPartnerSide  extends Thread{
 	private ServerData serverData = null;
 	
 	private ServerSocket serverSocket = null;
+	// selector mode: channel of serverSocket (null in threads mode)
+	private ServerSocketChannel serverChannel = null;
 
 	boolean servicePublished = false;
 
@@ -64,9 +67,37 @@ public class ServerPartnerSide  extends Thread{
 		// waits until the Server is ready to receive TSAE sessions from partner servers
 		serverData.waitServerConnected();
 		
+		if (serverChannel != null){
+			// accept remote TSAE connections and serve their sessions with a
+			// selector and a fixed pool of workers
+			try {
+				new PartnerSideSelector(serverChannel, serverData, serverData.getPartnerWorkers()).serve();
+			} catch (IOException e) {
+				LSimLogger.log(Level.ERROR,
+						e.getMessage()
+						);
+				e.printStackTrace();
+			}
+		} else {
+			acceptSessions();
+		}
+		
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			LSimLogger.log(Level.ERROR,
+					e.getMessage()
+					);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * accepts remote TSAE connections and starts a new thread for each one
+	 */
+	private void acceptSessions(){
 		// accept remote TSAE connections
 		// starts a new thread for each TSAE sessions from a partner server 
-
 		while (!serverData.end()){
 			try {
 				// accept will block for this amount of time.
@@ -74,7 +105,7 @@ public class ServerPartnerSide  extends Thread{
 				// if server should stop it will close and finish.
 				// In other case it will block again. 
 				serverSocket.setSoTimeout(20000);
-				new TSAESessionPartnerSide(serverSocket.accept(), this.serverData).start();
+				serverData.getSessionThreads().start(new TSAESessionPartnerSide(serverSocket.accept(), this.serverData), "TSAEPartnerSideThread");
 			} catch (java.net.SocketTimeoutException e){
 				;
 			}catch (IOException e1) {
@@ -85,15 +116,6 @@ public class ServerPartnerSide  extends Thread{
 				e1.printStackTrace();
 			}
 		}
-		
-		try {
-			serverSocket.close();
-		} catch (IOException e) {
-			LSimLogger.log(Level.ERROR,
-					e.getMessage()
-					);
-			e.printStackTrace();
-		}
 	}
 	
 	public int getPort(){
@@ -138,7 +160,12 @@ public class ServerPartnerSide  extends Thread{
 		// starts a thread to deal with TSAE sessions from partner servers 
 
 		try {
-			serverSocket = new ServerSocket();
+			if (serverData.isSelectorPartnerSide()){
+				serverChannel = ServerSocketChannel.open();
+				serverSocket = serverChannel.socket();
+			} else {
+				serverSocket = new ServerSocket();
+			}
 			serverSocket.setReuseAddress(true);
 			serverSocket.bind(new InetSocketAddress(port));
 //			serverSocket = new ServerSocket(port);
@@ -47,6 +47,9 @@ public class SimulationData {
 	private int executionStop; // duration of convergence phase (TSAE sessions. Disconnected nodes won't reconnect)
 	
 	private boolean connected = false;
+	// number of times this Server has disconnected (connections opened
+	// before a disconnection are not reused afterwards)
+	private volatile long disconnections = 0;
 	private boolean deletion=false;
 
 	// Activity simulation
@@ -172,6 +175,11 @@ public class SimulationData {
 
 	public void disconnect() {
 		this.connected = false;
+		this.disconnections++;
+	}
+
+	public long getDisconnections() {
+		return disconnections;
 	}
 
 	public boolean deletionActivated() {
@@ -22,6 +22,8 @@ package recipes_service.communication;
 
 import java.io.Serializable;
 
+import recipes_service.tsae.data_structures.GossipStability;
+import recipes_service.tsae.data_structures.SummaryAckDelta;
 import recipes_service.tsae.data_structures.TimestampMatrix;
 import recipes_service.tsae.data_structures.TimestampVector;
 
@@ -34,12 +36,56 @@ public class MessageAErequest extends Message implements Serializable{
 	private static final long serialVersionUID = 3626351664901270873L;
 	private TimestampVector summary;
 	private TimestampMatrix ack;
+	
+	// id of the sender and summary and ack, possibly delta-encoded.
+	// summary and ack are set by the receiver once the state is rebuilt
+	// (see DeltaExchange.resolve)
+	private String senderId;
+	private SummaryAckDelta state;
+	
+	// stability information sent instead of the ack in gossip stability
+	// mode (null otherwise)
+	private GossipStability stability;
+	
+	// true if the originator runs the session with the pipelined protocol
+	// (the partner answers with its AE request before sending its operations)
+	private boolean pipelined = false;
 
 	public MessageAErequest (TimestampVector summary, TimestampMatrix ack){
 		this.summary = summary;
 		this.ack = ack;
 	}
 	
+	public MessageAErequest (String senderId, SummaryAckDelta state){
+		this.senderId = senderId;
+		this.state = state;
+	}
+	
+	public String getSenderId(){
+		return this.senderId;
+	}
+	public SummaryAckDelta getState(){
+		return this.state;
+	}
+	public void setSummaryAck(TimestampVector summary, TimestampMatrix ack){
+		this.summary = summary;
+		this.ack = ack;
+	}
+	
+	public GossipStability getStability(){
+		return this.stability;
+	}
+	public void setStability(GossipStability stability){
+		this.stability = stability;
+	}
+	
+	public boolean isPipelined(){
+		return this.pipelined;
+	}
+	public void setPipelined(boolean pipelined){
+		this.pipelined = pipelined;
+	}
+	
 	public TimestampVector getSummary(){
 		return this.summary;
 	}
@@ -53,10 +99,16 @@ public class MessageAErequest extends Message implements Serializable{
 	
 	@Override
 	public String toString() {
+		 if (state != null && summary == null){
+			 return "MessageAErequest [session: "+getSessionNumber()+", sender=" + senderId + ", " + state + "]";
+		 }
 		 String str = "MessageAErequest [session: "+getSessionNumber()+", summary=" + summary;
 		 if (ack != null){
 			 str += ", ack=" + ack;
 		 }
+		 if (stability != null){
+			 str += ", " + stability;
+		 }
 		 return str + "]";
 	}
 
@@ -0,0 +1,44 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.communication;
+
+
+/**
+ * Reply of a partner that rejects a TSAE session because it is serving
+ * as many sessions as it admits (see SessionAdmission). The session ends
+ * without exchanging operations and the connection can carry another one.
+ */
+public class MessageBusy extends Message{
+
+	private static final long serialVersionUID = 4419732468807153522L;
+
+	public MessageBusy (){
+	}
+	
+	public MsgType type(){
+		return MsgType.BUSY;
+	}
+
+	@Override
+	public String toString() {
+		return "MessageBusy [session: "+getSessionNumber()+"]";
+	}
+}
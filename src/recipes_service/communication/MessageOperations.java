@@ -0,0 +1,84 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.communication;
+
+import java.io.Serializable;
+import java.util.List;
+
+import recipes_service.data.AddOperation;
+import recipes_service.data.Operation;
+import recipes_service.data.Recipe;
+import recipes_service.data.RemoveOperation;
+
+/**
+ * A batch of operations sent in a single message (instead of one
+ * MessageOperation for each operation). Operations are in the order
+ * they have to be applied.
+ */
+public class MessageOperations extends Message implements Serializable{
+	private static final long serialVersionUID = -6010447425162715367L;
+
+	// estimated size of an operation without its strings (bytes)
+	private static final int OPERATION_OVERHEAD = 48;
+
+	private List<Operation> operations;
+
+	public MessageOperations (List<Operation> operations){
+		this.operations = operations;
+	}
+
+	public List<Operation> getOperations(){
+		return this.operations;
+	}
+
+	public MsgType type(){
+		return MsgType.OPERATIONS;
+	}
+
+	/**
+	 * Estimation of the bytes taken by an operation in a batch (used to
+	 * keep batches under a byte budget without serializing them twice)
+	 * 
+	 * @param op
+	 * @return estimated size of op (bytes)
+	 */
+	public static int estimatedSize(Operation op){
+		int size = OPERATION_OVERHEAD;
+		if (op instanceof AddOperation){
+			Recipe recipe = ((AddOperation) op).getRecipe();
+			if (recipe != null){
+				size += length(recipe.getTitle()) + length(recipe.getRecipe()) + length(recipe.getAuthor());
+			}
+		} else if (op instanceof RemoveOperation){
+			size += length(((RemoveOperation) op).getRecipeTitle());
+		}
+		return size;
+	}
+
+	private static int length(String str){
+		return (str == null) ? 0 : str.length();
+	}
+
+	@Override
+	public String toString() {
+		return "MessageOperations [session: "+getSessionNumber()+", operations=" + operations.size() + "]";
+	}
+}
@@ -23,6 +23,7 @@ package recipes_service.data;
 import java.io.Serializable;
 
 import recipes_service.tsae.data_structures.Timestamp;
+import util.Hash64;
 
 /**
  * @author Joan-Manuel Marques
@@ -51,6 +52,12 @@ public class AddOperation extends Operation implements Serializable{
 		return OperationType.ADD;
 	}
 	
+	@Override
+	public long digest() {
+		long h = Hash64.combine(getType().ordinal(), timestamp.digest());
+		return Hash64.combine(h, (recipe == null) ? 0 : recipe.digest());
+	}
+
 	/*
 	 * Gets the recipe included on the add operation
 	 */
@@ -64,6 +71,10 @@ public class AddOperation extends Operation implements Serializable{
 				+ "]";
 	}
 	@Override
+	public int hashCode() {
+		return (recipe == null) ? 0 : recipe.hashCode();
+	}
+	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
 			return true;
@@ -44,4 +44,11 @@ public abstract class Operation implements Serializable{
 	}
 	
 	public abstract OperationType getType();
+
+	/**
+	 * 64-bit hash of the content of the operation (type, timestamp and
+	 * payload), used by the digests of the Log. It only depends on the
+	 * content, so it is the same on every Server.
+	 */
+	public abstract long digest();
 }
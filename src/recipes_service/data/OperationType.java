@@ -26,5 +26,5 @@ package recipes_service.data;
  *
  */
 public enum OperationType {
-	ADD, REMOVE
+	ADD, REMOVE, TOMBSTONE
 }
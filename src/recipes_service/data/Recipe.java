@@ -23,6 +23,7 @@ package recipes_service.data;
 import java.io.Serializable;
 
 import recipes_service.tsae.data_structures.Timestamp;
+import util.Hash64;
 
 /**
  * @author Joan-Manuel Marques
@@ -61,6 +62,27 @@ public class Recipe implements Serializable{
 	}
 	
 	
+	/**
+	 * 64-bit hash of the content of the recipe (see util.Hash64)
+	 */
+	public long digest() {
+		long h = Hash64.of(title);
+		h = Hash64.combine(h, Hash64.of(recipe));
+		h = Hash64.combine(h, Hash64.of(author));
+		return Hash64.combine(h, (timestamp == null) ? 0 : timestamp.digest());
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((author == null) ? 0 : author.hashCode());
+		result = prime * result + ((recipe == null) ? 0 : recipe.hashCode());
+		result = prime * result + ((title == null) ? 0 : title.hashCode());
+		result = prime * result + ((timestamp == null) ? 0 : timestamp.hashCode());
+		return result;
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
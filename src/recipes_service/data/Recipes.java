@@ -20,11 +20,19 @@
 
 package recipes_service.data;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 
+import util.Hash64;
+
 /**
  * @author Joan-Manuel Marques
  * December 2012
@@ -35,6 +43,12 @@ public class Recipes implements Serializable{
 	private static final long serialVersionUID = -8117147242301640951L;
 	private TreeMap<String,Recipe> recipes = null;
 	
+	// digest of the recipes: recipes are spread in BUCKETS buckets by the
+	// hash of their title and each bucket keeps the sum of the digests of
+	// its recipes (updated by add and remove). Rebuilt by readObject.
+	private static final int BUCKETS = 64;
+	private transient long[] buckets = new long[BUCKETS];
+	
 	static Random rnd = new Random();
 	
 	
@@ -43,11 +57,19 @@ public class Recipes implements Serializable{
 	}
 	
 	public synchronized void add(Recipe recipe){
-		recipes.put(recipe.getTitle(),recipe);
+		Recipe old = recipes.put(recipe.getTitle(),recipe);
+		int bucket = bucket(recipe.getTitle());
+		if (old != null){
+			buckets[bucket] -= old.digest();
+		}
+		buckets[bucket] += recipe.digest();
 	}
 	
 	public synchronized void remove(String recipeTitle){
-		recipes.remove(recipeTitle);
+		Recipe old = recipes.remove(recipeTitle);
+		if (old != null){
+			buckets[bucket(recipeTitle)] -= old.digest();
+		}
 	}
 	public synchronized Recipe get(String recipeTitle){
 		return recipes.get(recipeTitle);
@@ -68,8 +90,79 @@ public class Recipes implements Serializable{
 		}
 		return result;
 	}
+	private static int bucket(String title){
+		return (int) (Hash64.of(title) >>> 58); // 6 bits: 64 buckets
+	}
+	
+	/**
+	 * @return a copy of the digests of the buckets
+	 */
+	private synchronized long[] buckets(){
+		return buckets.clone();
+	}
+	
+	private synchronized int size(){
+		return recipes.size();
+	}
+	
+	/**
+	 * Digest of all the recipes (root of the buckets)
+	 */
+	public synchronized long digest(){
+		long digest = 0;
+		for (int i = 0; i < BUCKETS; i++){
+			digest = Hash64.combine(digest, buckets[i]);
+		}
+		return digest;
+	}
+	
+	/**
+	 * Localizes the differences between two sets of recipes: only the
+	 * recipes of the buckets whose digests differ are compared.
+	 * @param other
+	 * @return titles of the recipes that are different (or only in one of them)
+	 */
+	public List<String> divergentTitles(Recipes other){
+		long[] mine = buckets();
+		long[] theirs = other.buckets();
+		boolean[] divergent = new boolean[BUCKETS];
+		boolean any = false;
+		for (int i = 0; i < BUCKETS; i++){
+			divergent[i] = mine[i] != theirs[i];
+			any |= divergent[i];
+		}
+		List<String> titles = new ArrayList<String>();
+		if (!any){
+			return titles;
+		}
+		TreeMap<String,Recipe> a = this.copyOf(divergent);
+		TreeMap<String,Recipe> b = other.copyOf(divergent);
+		for (Map.Entry<String,Recipe> entry : a.entrySet()){
+			if (!entry.getValue().equals(b.remove(entry.getKey()))){
+				titles.add(entry.getKey());
+			}
+		}
+		titles.addAll(b.keySet());
+		return titles;
+	}
+	
+	private synchronized TreeMap<String,Recipe> copyOf(boolean[] selected){
+		TreeMap<String,Recipe> copy = new TreeMap<String,Recipe>();
+		for (Map.Entry<String,Recipe> entry : recipes.entrySet()){
+			if (selected[bucket(entry.getKey())]){
+				copy.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return copy;
+	}
+	
+	/**
+	 * Two Recipes are equal if they have the same number of recipes and
+	 * the digests of all their buckets match (see divergentTitles to find
+	 * out which recipes differ)
+	 */
 	@Override
-	public synchronized boolean equals(Object obj) {
+	public boolean equals(Object obj) {
 		if (this == obj)
 			return true;
 		if (obj == null)
@@ -77,23 +170,20 @@ public class Recipes implements Serializable{
 		if (getClass() != obj.getClass())
 			return false;
 		Recipes other = (Recipes) obj;
-		if (recipes == null) {
-			if (other.recipes != null)
-				return false;
-			else 
-				return true;
-		} else {
-			if (recipes.size() != other.recipes.size()){
-				return false;
-			}
-			boolean equal = true;
-			for (Iterator<String> it = recipes.keySet().iterator(); it.hasNext() && equal; ){
-				String rcp = it.next();
-				equal = recipes.get(rcp).equals(other.recipes.get(rcp));
-				if (!equal){
-				}
-			}
-			return equal;
+		// locks are taken one at a time to avoid lock-order deadlocks
+		return size() == other.size() && Arrays.equals(buckets(), other.buckets());
+	}
+	
+	@Override
+	public int hashCode() {
+		return Long.hashCode(digest());
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		buckets = new long[BUCKETS];
+		for (Recipe recipe : recipes.values()){
+			buckets[bucket(recipe.getTitle())] += recipe.digest();
 		}
 	}
 
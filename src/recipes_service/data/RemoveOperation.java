@@ -23,6 +23,7 @@ package recipes_service.data;
 import java.io.Serializable;
 
 import recipes_service.tsae.data_structures.Timestamp;
+import util.Hash64;
 
 /**
  * @author Joan-Manuel Marques
@@ -51,12 +52,26 @@ public class RemoveOperation extends Operation implements Serializable{
 		return recipeTimestamp;
 	}
 	@Override
+	public long digest() {
+		long h = Hash64.combine(getType().ordinal(), timestamp.digest());
+		h = Hash64.combine(h, Hash64.of(recipeTitle));
+		return Hash64.combine(h, (recipeTimestamp == null) ? 0 : recipeTimestamp.digest());
+	}
+	@Override
 	public String toString() {
 		return "RemoveOperation [recipeTitle=" + recipeTitle
 				+ ", recipeTimestamp=" + recipeTimestamp + ", timestamp="
 				+ timestamp + "]";
 	}
 	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((recipeTimestamp == null) ? 0 : recipeTimestamp.hashCode());
+		result = prime * result + ((recipeTitle == null) ? 0 : recipeTitle.hashCode());
+		return result;
+	}
+	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
 			return true;
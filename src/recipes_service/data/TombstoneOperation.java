@@ -0,0 +1,76 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package recipes_service.data;
+
+import java.io.Serializable;
+
+import recipes_service.tsae.data_structures.Timestamp;
+import util.Hash64;
+
+/**
+ * Compacted form of an AddOperation whose recipe has been removed
+ * afterwards (see Log compaction). It only keeps the timestamp of the
+ * original AddOperation, so partners still advance their summary
+ * without receiving (and re-adding) a recipe that no longer exists.
+ */
+public class TombstoneOperation extends Operation implements Serializable{
+
+	private static final long serialVersionUID = -2470786553612254931L;
+
+	public TombstoneOperation(Timestamp ts){
+		super(ts);
+	}
+
+	public OperationType getType(){
+		return OperationType.TOMBSTONE;
+	}
+
+	@Override
+	public long digest() {
+		return Hash64.combine(getType().ordinal(), timestamp.digest());
+	}
+
+	@Override
+	public String toString() {
+		return "TombstoneOperation [timestamp=" + timestamp + "]";
+	}
+	@Override
+	public int hashCode() {
+		return (timestamp == null) ? 0 : timestamp.hashCode();
+	}
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		TombstoneOperation other = (TombstoneOperation) obj;
+		if (timestamp == null) {
+			if (other.timestamp != null)
+				return false;
+		} else if (!timestamp.equals(other.timestamp))
+			return false;
+		return true;
+	}
+}
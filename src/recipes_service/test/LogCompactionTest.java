@@ -0,0 +1,72 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package recipes_service.test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import recipes_service.data.AddOperation;
+import recipes_service.data.Operation;
+import recipes_service.data.Recipe;
+import recipes_service.data.RemoveOperation;
+import recipes_service.tsae.data_structures.Log;
+import recipes_service.tsae.data_structures.Participants;
+import recipes_service.tsae.data_structures.Timestamp;
+
+/**
+ * Checks that, with compaction, the log does not depend on the order in which
+ * the AddOperation of a recipe and the RemoveOperation that removes it arrive:
+ * the AddOperation ends up logged as a TombstoneOperation either way.
+ * 
+ * Usage: java recipes_service.test.LogCompactionTest
+ * (exits with status 1 if the logs differ)
+ */
+public class LogCompactionTest {
+
+	public static void main(String[] args) {
+		List<String> participants = Arrays.asList("Group01@127.0.0.1:35001", "Group02@127.0.0.1:35002");
+		Participants.register(participants);
+
+		Timestamp addTs = new Timestamp(participants.get(0), 0);
+		Timestamp removeTs = new Timestamp(participants.get(1), 0);
+		Operation add = new AddOperation(new Recipe("title", "recipe", participants.get(0), addTs), addTs);
+		Operation remove = new RemoveOperation("title", addTs, removeTs);
+
+		// the AddOperation first, and then the RemoveOperation
+		Log addFirst = new Log(participants);
+		addFirst.setCompaction(true);
+		addFirst.add(add);
+		addFirst.add(remove);
+
+		// the RemoveOperation first, and then the AddOperation
+		Log removeFirst = new Log(participants);
+		removeFirst.setCompaction(true);
+		removeFirst.add(remove);
+		removeFirst.add(add);
+
+		boolean equal = addFirst.equals(removeFirst);
+		System.out.println("add first:    " + addFirst);
+		System.out.println("remove first: " + removeFirst);
+		System.out.println(equal ? "OK: equal logs" : "FAILED: the logs differ");
+		System.exit(equal ? 0 : 1);
+	}
+}
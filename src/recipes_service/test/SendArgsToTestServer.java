@@ -147,6 +147,21 @@ public class SendArgsToTestServer {
 			params.put("samplingTime",String.valueOf(properties.getProperty("samplingTime")));
 			params.put("purge",purge);
 			params.put("executionMode",executionMode);
+			params.put("compaction",properties.getProperty("compaction", "Off"));
+			params.put("persistence",properties.getProperty("persistence", "Off"));
+			params.put("dataFolder",properties.getProperty("dataFolder", "../tsaeData"));
+			params.put("checkpointPeriod",properties.getProperty("checkpointPeriod", "30"));
+			params.put("stability",properties.getProperty("stability", "Matrix"));
+			params.put("connectionPooling",properties.getProperty("connectionPooling", "Off"));
+			params.put("batchSize",properties.getProperty("batchSize", "1"));
+			params.put("batchBytes",properties.getProperty("batchBytes", "65536"));
+			params.put("sessionProtocol",properties.getProperty("sessionProtocol", "Sequential"));
+			params.put("sessionParallelism",properties.getProperty("sessionParallelism", "1"));
+			params.put("partnerSide",properties.getProperty("partnerSide", "Threads"));
+			params.put("partnerWorkers",properties.getProperty("partnerWorkers", "8"));
+			params.put("sessionThreads",properties.getProperty("sessionThreads", "Platform"));
+			params.put("partnerSessions",properties.getProperty("partnerSessions", "0"));
+			params.put("partnerQueue",properties.getProperty("partnerQueue", "16"));
 
 			//params.put("coordinatorLSimParameters", paramsServer);
 			ExperimentData experimentData = new ExperimentData();
@@ -20,10 +20,18 @@
 
 package recipes_service.test;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import recipes_service.data.Recipes;
 import recipes_service.tsae.data_structures.Log;
+import recipes_service.tsae.data_structures.Participants;
+import recipes_service.tsae.data_structures.Timestamp;
 import recipes_service.tsae.data_structures.TimestampMatrix;
 import recipes_service.tsae.data_structures.TimestampVector;
 
@@ -65,6 +73,50 @@ public class ServerResult implements Serializable{
 	public TimestampMatrix getAck() {
 		return ack;
 	}
+	/**
+	 * Describes where this result differs from another one: hosts whose
+	 * log operations differ (and the first different operation) and titles
+	 * of the recipes that differ. Found through the digests of the log and
+	 * the recipes, so only the divergent parts are traversed.
+	 * @param other
+	 * @return an empty string if log and recipes are equal
+	 */
+	public String divergence(ServerResult other){
+		StringBuilder sb = new StringBuilder();
+		if (log != null && other.log != null){
+			Map<String, Timestamp> hosts = log.divergentHosts(other.log);
+			if (!hosts.isEmpty()){
+				sb.append("Log differs from: ").append(hosts).append("\n");
+			}
+		}
+		if (recipes != null && other.recipes != null){
+			List<String> titles = recipes.divergentTitles(other.recipes);
+			if (!titles.isEmpty()){
+				sb.append("Recipes differ: ").append(titles).append("\n");
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Timestamps are serialized with the index of their host in the
+	 * Participants registry, so the registry travels with the result
+	 * to translate them back to host ids on the TestServer
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.writeObject(new ArrayList<String>(Participants.ids()));
+		out.defaultWriteObject();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		List<String> participants = (List<String>) in.readObject();
+		if (!participants.isEmpty()){
+			Participants.register(participants);
+		}
+		in.defaultReadObject();
+	}
+
 	public String toString(){
 		return "\nNode id: " + nodeId + "\nRecipes: " + recipes.toString() 
 				+ "\nLog: " + log.toString() + "\nSummary: " + summary.toString()
@@ -268,6 +268,10 @@ public class TestServerExperimentManager extends Thread{
 			else equal = equal && finalResults.get(0).equalsNoACK(finalResults.get(i));
 //			if (!equal){
 				System.out.println("\n##### ["+finalResults.get(i).getNodeId()+"] Result:\n " + finalResults.get(i));
+				String divergence = finalResults.get(0).divergence(finalResults.get(i));
+				if (!divergence.isEmpty()){
+					System.out.println("##### ["+finalResults.get(i).getNodeId()+"] Divergence:\n" + divergence);
+				}
 				if (logResults){
 					try {
 						DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
@@ -0,0 +1,168 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package recipes_service.tsae.data_structures;
+
+import java.io.Serializable;
+import java.util.BitSet;
+
+/**
+ * Stability detection without the ack matrix, for large groups. Each
+ * Server keeps O(n) state instead of the n x n ack and sends it in every
+ * TSAE session in place of the ack.
+ *
+ * Stability is computed by rounds (epochs) of a gossiped aggregate: the
+ * minimum (entry by entry) of the summaries of the Servers that have
+ * contributed to it, together with the set of those contributors (their
+ * acknowledged watermarks). Aggregates of the same epoch are merged by
+ * taking the minimum and the union of contributors. As summaries only
+ * grow, once every participant has contributed the aggregate is a lower
+ * bound of the current summary of every participant: all the operations
+ * it covers have been received by everybody, which is what the minimum of
+ * the columns of the ack guarantees. It is then merged (maximum) into the
+ * stable vector and a new epoch starts. Stable vectors are also merged
+ * by maximum when Servers meet.
+ */
+public class GossipStability implements Serializable {
+
+    private static final long serialVersionUID = -3208873650273011576L;
+
+    private long epoch = 0;
+    // minimum of the summaries of the contributors of the current epoch
+    private TimestampVector aggregate;
+    // positions (as in TimestampVector) of the contributors of the current epoch
+    private BitSet contributors;
+    // operations up to this vector have been received by all participants
+    private TimestampVector stable;
+
+    // local Server: only set in the instance kept by ServerData (not sent)
+    private transient TimestampVector summary;
+    private transient int self = -1;
+
+    /**
+     * @param summary the summary of the local Server.
+     * @param localId id of the local Server.
+     */
+    public GossipStability(TimestampVector summary, String localId) {
+        this.summary = summary;
+        this.self = summary.positionOf(localId);
+        this.stable = new TimestampVector(java.util.Arrays.asList(summary.hosts()));
+        startEpoch(0);
+        checkComplete();
+    }
+
+    private GossipStability(GossipStability original) {
+        this.epoch = original.epoch;
+        this.aggregate = original.aggregate.clone();
+        this.contributors = (BitSet) original.contributors.clone();
+        this.stable = original.stable.clone();
+    }
+
+    /**
+     * Starts an epoch with the contribution of the local Server.
+     */
+    private void startEpoch(long epoch) {
+        this.epoch = epoch;
+        this.aggregate = summary.clone();
+        this.contributors = new BitSet(summary.size());
+        if (self >= 0) {
+            contributors.set(self);
+        }
+    }
+
+    /**
+     * If every participant has contributed to the current epoch, its
+     * aggregate becomes stable and a new epoch starts.
+     */
+    private void checkComplete() {
+        if (contributors.cardinality() == aggregate.size()) {
+            stable.updateMax(aggregate);
+            if (aggregate.size() > 0) {
+                startEpoch(epoch + 1);
+                if (contributors.cardinality() == aggregate.size()) {
+                    // single participant: the new epoch is already complete. Its
+                    // aggregate becomes stable now, and the next epoch starts at
+                    // the next check (not here, as it would never end)
+                    stable.updateMax(aggregate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the stability information received from a partner, and
+     * contributes the local summary to the current epoch if it had not
+     * contributed yet.
+     *
+     * @param received stability information of a partner (may be null).
+     */
+    public synchronized void merge(GossipStability received) {
+        if (received != null && received.aggregate.sameLayout(aggregate)) {
+            stable.updateMax(received.stable);
+            if (received.epoch > epoch) {
+                // the partner is in a newer epoch: join it
+                epoch = received.epoch;
+                aggregate = received.aggregate.clone();
+                contributors = (BitSet) received.contributors.clone();
+            } else if (received.epoch == epoch) {
+                aggregate.mergeMin(received.aggregate);
+                contributors.or(received.contributors);
+            }
+        }
+        if (self >= 0 && !contributors.get(self)) {
+            aggregate.mergeMin(summary);
+            contributors.set(self);
+        }
+        checkComplete();
+    }
+
+    /**
+     * @return a copy of the stability information, to be sent to a partner.
+     */
+    public synchronized GossipStability copy() {
+        return new GossipStability(this);
+    }
+
+    /**
+     * @param host id of a participant.
+     * @return last sequence number of host received by all participants.
+     */
+    public synchronized long stableSeqnumber(String host) {
+        return stable.getLastSeqnumber(host);
+    }
+
+    /**
+     * @return a snapshot of the stable vector.
+     */
+    public synchronized TimestampVector getStable() {
+        return stable.snapshot();
+    }
+
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GossipStability [epoch=" + epoch + ", contributors=" + contributors
+                + ", aggregate=" + aggregate + ", stable=" + stable + "]";
+    }
+}
@@ -20,23 +20,31 @@
 
 package recipes_service.tsae.data_structures;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Vector;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
 
+import recipes_service.data.AddOperation;
 import recipes_service.data.Operation;
+import recipes_service.data.TombstoneOperation;
 import recipes_service.tsae.data_structures.TimestampMatrix;
 import recipes_service.tsae.data_structures.TimestampVector;
 import recipes_service.data.RemoveOperation;
+import util.Hash64;
 
 //LSim logging system imports sgeag@2017
 //import lsim.coordinator.LSimCoordinator;
@@ -56,23 +64,76 @@ public class Log implements Serializable {
     // Needed for the logging system sgeag@2017
     // private transient LSimWorker lsim = LSimFactory.getWorkerInstance();
 
-    private static final long serialVersionUID = -4864990265268259700L;
+    private static final long serialVersionUID = 6244781308197677201L;
     /**
      * This class implements a log, that stores the operations
      * received by a client.
      * They are stored in a ConcurrentHashMap (a hash table),
-     * that stores a list of operations for each member of
-     * the group.
+     * that stores an append-only SegmentedLog of operations
+     * for each member of the group.
+     * Writers are serialized per host (see SegmentedLog.writeLock),
+     * so operations from different hosts are appended in parallel;
+     * readers work on per-host snapshots and take no lock.
      */
     // private ConcurrentHashMap<String, List<Operation>> log= new
     // ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, CopyOnWriteArrayList<Operation>> log = new ConcurrentHashMap<>();
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ConcurrentHashMap<String, SegmentedLog> log = new ConcurrentHashMap<>();
+
+    // the same per-host logs, indexed by the host index in the Participants
+    // registry (see lane). Not serialized; readObject rebuilds it.
+    private transient SegmentedLog[] lanes = new SegmentedLog[0];
+
+    // number of operations rejected by add because they were already logged / out of order
+    private final AtomicLong duplicatesRejected = new AtomicLong();
+    private final AtomicLong outOfOrderRejected = new AtomicLong();
+
+    // secondary indexes over the logged operations, maintained by add and purgeLog:
+    //  * byTimestamp: timestamp (host and sequence number) -> operation
+    //  * byRecipe: operation (recipe identity, see Add/RemoveOperation.equals) -> timestamp
+    // They are not serialized; readObject rebuilds them.
+    private transient ConcurrentHashMap<Timestamp, Operation> byTimestamp = new ConcurrentHashMap<>();
+    private transient ConcurrentHashMap<Operation, Timestamp> byRecipe = new ConcurrentHashMap<>();
+
+    // compaction: when a RemoveOperation is logged, the AddOperation of the
+    // removed recipe (if still in the log) is replaced by a TombstoneOperation
+    private transient volatile boolean compaction = false;
+    private final AtomicLong compacted = new AtomicLong();
+    // timestamps of the recipes removed by a logged RemoveOperation whose
+    // AddOperation has not been logged yet: with compaction, the AddOperation
+    // is logged as a TombstoneOperation when it arrives (see append), as if it
+    // had arrived first. Not serialized; readObject rebuilds it.
+    private transient Set<Timestamp> removedBeforeAdd = ConcurrentHashMap.newKeySet();
 
     public Log(List<String> participants) {
         for (String participant : participants) {
-            log.put(participant, new CopyOnWriteArrayList<>());
+            log.put(participant, new SegmentedLog());
+        }
+        indexLanes();
+    }
+
+    private void indexLanes() {
+        SegmentedLog[] indexed = new SegmentedLog[Participants.size()];
+        for (Map.Entry<String, SegmentedLog> entry : log.entrySet()) {
+            int host = Participants.indexOf(entry.getKey());
+            if (host != Participants.UNKNOWN) {
+                indexed[host] = entry.getValue();
+            }
         }
+        lanes = indexed;
+    }
+
+    /**
+     * @return the log of the host that issued the operation with timestamp
+     *         ts, looked up by host index when the host is a registered
+     *         participant (and by host id otherwise).
+     */
+    private SegmentedLog lane(Timestamp ts) {
+        int host = ts.getHostIndex();
+        SegmentedLog[] indexed = lanes;
+        if (host >= 0 && host < indexed.length && indexed[host] != null) {
+            return indexed[host];
+        }
+        return log.computeIfAbsent(ts.getHostid(), k -> new SegmentedLog());
     }
 
     /**
@@ -80,39 +141,130 @@ public class Log implements Serializable {
      * inserted in order. If the last operation for
      * the user is not the previous operation than the one
      * being inserted, the insertion will fail.
+     * Both checks are O(1): they only look at the host's
+     * high-water sequence number (and its gaps, if any).
      *
      * @param op the operation to be inserted into the log.
      * @return true if op is inserted, false otherwise.
      */
     public boolean add(Operation op) {
-        lock.writeLock().lock(); // Acquire write lock for thread safety
+        if (!append(op)) {
+            return false;
+        }
+        // done once the lock of op's host is released: the AddOperation
+        // may belong to another host
+        if (compaction && op instanceof RemoveOperation) {
+            compact((RemoveOperation) op);
+        }
+        return true;
+    }
+
+    private boolean append(Operation op) {
+        String hostId = op.getTimestamp().getHostid();
+        SegmentedLog opeList = lane(op.getTimestamp());
+
+        opeList.writeLock().lock(); // Only writers of the same host are serialized
         try {
-            String hostId = op.getTimestamp().getHostid();
-            CopyOnWriteArrayList<Operation> opeList = log.computeIfAbsent(hostId, k -> new CopyOnWriteArrayList<>());
+            long seq = op.getTimestamp().getSeqnumber();
 
-            // Check for duplicate operations based on timestamp
-            if (opeList.stream().anyMatch(existingOp -> existingOp.getTimestamp().equals(op.getTimestamp()))) {
-                LSimLogger.log(Level.WARN, "Duplicate operation detected: " + op);
+            // Check for duplicate operations (also those already purged)
+            if (opeList.covers(seq)) {
+                duplicatesRejected.incrementAndGet();
+                LSimLogger.log(Level.TRACE, "Duplicate operation detected: " + op);
                 return false; // Duplicate timestamp, ignore the operation
             }
 
             // Ensure operations are added in order based on timestamp
-            if (opeList.isEmpty() || opeList.get(opeList.size() - 1).getTimestamp().compare(op.getTimestamp()) < 0) {
-                opeList.add(op);
+            if (seq > opeList.highWater()) {
+                if (compaction && op instanceof AddOperation && removedBeforeAdd.remove(op.getTimestamp())) {
+                    // its recipe has already been removed: logged compacted
+                    op = new TombstoneOperation(op.getTimestamp());
+                    compacted.incrementAndGet();
+                }
+                opeList.append(op);
+                index(op);
                 LSimLogger.log(Level.INFO, String.format("Operation added: Host='%s', Timestamp='%s'. Current size: %d",
                         hostId, op.getTimestamp(), opeList.size()));
                 return true;
             }
 
             // Log a warning if the operation is out of order
+            outOfOrderRejected.incrementAndGet();
             LSimLogger.log(Level.WARN, String.format("Operation rejected due to out-of-order timestamp: Host='%s', Timestamp='%s'",
                     hostId, op.getTimestamp()));
             return false;
         } finally {
-            lock.writeLock().unlock(); // Release write lock
+            opeList.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Activates or deactivates compaction of Add/Remove pairs. Compaction
+     * keeps the timestamps of the compacted operations, so summaries
+     * computed from the log are not affected.
+     *
+     * @param compaction true to compact.
+     */
+    public void setCompaction(boolean compaction) {
+        this.compaction = compaction;
+    }
+
+    /**
+     * Replaces the AddOperation of the recipe removed by rm by a
+     * TombstoneOperation with the same timestamp or, if the AddOperation
+     * has not arrived yet, records that it has to be logged compacted.
+     * Done holding the lock of the AddOperation's host, so it can not be
+     * appended in the meantime.
+     */
+    private void compact(RemoveOperation rm) {
+        Timestamp addTimestamp = rm.getRecipeTimestamp();
+        if (addTimestamp == null) {
+            return;
+        }
+        SegmentedLog opeList = lane(addTimestamp);
+        opeList.writeLock().lock();
+        try {
+            Operation added = byTimestamp.get(addTimestamp);
+            if (added == null && !opeList.covers(addTimestamp.getSeqnumber())) {
+                removedBeforeAdd.add(addTimestamp);
+                return;
+            }
+            if (!(added instanceof AddOperation)) {
+                return; // already purged or compacted
+            }
+            Operation tombstone = new TombstoneOperation(added.getTimestamp());
+            if (opeList.replace(added, tombstone)) {
+                byTimestamp.put(added.getTimestamp(), tombstone);
+                byRecipe.remove(added, added.getTimestamp());
+                compacted.incrementAndGet();
+                LSimLogger.log(Level.TRACE, "Compacted operation: " + added);
+            }
+        } finally {
+            opeList.writeLock().unlock();
         }
     }
 
+    /**
+     * @return number of AddOperations replaced by a TombstoneOperation.
+     */
+    public long getCompacted() {
+        return compacted.get();
+    }
+
+    /**
+     * @return number of operations rejected by add because they had already been logged.
+     */
+    public long getDuplicatesRejected() {
+        return duplicatesRejected.get();
+    }
+
+    /**
+     * @return number of operations rejected by add because they were out of order.
+     */
+    public long getOutOfOrderRejected() {
+        return outOfOrderRejected.get();
+    }
+
     /**
      * Checks the received summary (sum) and determines the operations
      * contained in the log that have not been seen by
@@ -124,27 +276,59 @@ public class Log implements Serializable {
      */
     public List<Operation> listNewer(TimestampVector sum) {
         List<Operation> newList = new ArrayList<>();
-        lock.readLock().lock(); // Acquire read lock for thread safety
-        try {
-            for (Map.Entry<String, CopyOnWriteArrayList<Operation>> entry : log.entrySet()) {
-                String id = entry.getKey();
-                CopyOnWriteArrayList<Operation> opeList = entry.getValue();
-                if (opeList.isEmpty()) continue;
-
-                Timestamp lastSeen = sum.getLast(id);
-                for (Operation op : opeList) {
-                    if (op.getTimestamp().compare(lastSeen) > 0) {
-                        newList.add(op);
-                        LSimLogger.log(Level.TRACE, "Operation newer than summary found: " + op);
-                    }
-                }
-            }
-        } finally {
-            lock.readLock().unlock(); // Release read lock
+        for (Iterator<Operation> it = iterateNewer(sum); it.hasNext(); ) {
+            newList.add(it.next());
         }
         return newList;
     }
 
+    /**
+     * Lazy version of listNewer: returns a cursor over the operations
+     * that have not been seen by the proprietary of the summary, so they
+     * can be streamed without building the whole list.
+     * The snapshot of every host's log is taken when the cursor is
+     * created; operations added or purged afterwards do not affect it.
+     *
+     * @param sum the summary vector to compare against.
+     * @return iterator over the operations that are newer than the summary.
+     */
+    public Iterator<Operation> iterateNewer(TimestampVector sum) {
+        final List<Iterator<Operation>> hosts = new ArrayList<>(log.size());
+        for (Map.Entry<String, SegmentedLog> entry : log.entrySet()) {
+            SegmentedLog opeList = entry.getValue();
+            if (opeList.isEmpty()) continue;
+
+            Timestamp lastSeen = sum.getLast(entry.getKey());
+            if (lastSeen != null && opeList.highWater() <= lastSeen.getSeqnumber()) {
+                continue; // nothing unseen: not even a search
+            }
+            // Per-host logs are ordered by sequence number (see add), so binary
+            // search the first unseen operation; only the tail is read (lazily).
+            hosts.add(opeList.newer(lastSeen));
+        }
+        return new Iterator<Operation>() {
+            private int host = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (host < hosts.size() && !hosts.get(host).hasNext()) {
+                    hosts.set(host++, null); // release the snapshot already read
+                }
+                return host < hosts.size();
+            }
+
+            @Override
+            public Operation next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Operation op = hosts.get(host).next();
+                LSimLogger.log(Level.TRACE, "Operation newer than summary found: " + op);
+                return op;
+            }
+        };
+    }
+
     /**
      * Removes from the log the operations that have
      * been acknowledged by all the members
@@ -156,28 +340,85 @@ public class Log implements Serializable {
     public void purgeLog(TimestampMatrix ack) {
         if (ack == null) return;
 
-        lock.writeLock().lock(); // Acquire write lock for thread safety
-        try {
-            TimestampVector minTimestampVector = ack.minTimestampVector();
-            if (minTimestampVector == null) return;
-
-            for (Map.Entry<String, CopyOnWriteArrayList<Operation>> entry : log.entrySet()) {
-                String hostId = entry.getKey();
-                CopyOnWriteArrayList<Operation> operations = entry.getValue();
-
-                operations.removeIf(op -> {
-                    String opHostId = op.getTimestamp().getHostid();
-                    Timestamp minAck = minTimestampVector.getLast(opHostId);
-                    return minAck != null && op.getTimestamp().compare(minAck) <= 0;
-                });
+        // maintained by the matrix: no vector of minimums is built
+        purgeLog(ack::minSeqnumber);
+    }
+
+    /**
+     * Removes from the log the operations that have been received by all
+     * the members of the group, according to the stable vector computed
+     * by GossipStability.
+     * 
+     * @param stable last sequence number of each host received by all the members.
+     */
+    public void purgeLog(TimestampVector stable) {
+        if (stable == null) return;
+
+        purgeLog(stable::getLastSeqnumber);
+    }
+
+    private void purgeLog(ToLongFunction<String> stableSeqnumber) {
+        for (Map.Entry<String, SegmentedLog> entry : log.entrySet()) {
+            long minAck = stableSeqnumber.applyAsLong(entry.getKey());
+
+            SegmentedLog operations = entry.getValue();
+            operations.writeLock().lock(); // Lock one host at a time
+            try {
+                for (Iterator<Operation> it = operations.removeUpTo(minAck); it.hasNext(); ) {
+                    unindex(it.next());
+                }
+            } finally {
+                operations.writeLock().unlock();
             }
-        } finally {
-            lock.writeLock().unlock(); // Release write lock
         }
     }
 
     /**
-     * Checks if this log is equal to another object.
+     * Digest of the whole log. It is the root of a two-level hash tree:
+     * the leaves are the digests of the per-host logs (kept up to date
+     * as operations are added, compacted or purged) combined with the
+     * host id, so computing it costs O(number of hosts).
+     *
+     * @return the digest of the log.
+     */
+    public long digest() {
+        long digest = 0;
+        for (Map.Entry<String, SegmentedLog> entry : log.entrySet()) {
+            long hostDigest = entry.getValue().digest();
+            if (hostDigest != 0) { // empty logs do not count
+                digest += Hash64.combine(Hash64.of(entry.getKey()), hostDigest);
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Localizes the differences between this log and another one.
+     *
+     * @param other the log to compare with.
+     * @return for each host whose operations differ, the timestamp of
+     *         the first different operation; empty if the logs are equal.
+     */
+    public Map<String, Timestamp> divergentHosts(Log other) {
+        Map<String, Timestamp> divergent = new TreeMap<>();
+        Set<String> hosts = new HashSet<>(log.keySet());
+        hosts.addAll(other.log.keySet());
+        SegmentedLog empty = new SegmentedLog();
+        for (String host : hosts) {
+            SegmentedLog mine = log.getOrDefault(host, empty);
+            SegmentedLog theirs = other.log.getOrDefault(host, empty);
+            if (!mine.equals(theirs)) {
+                divergent.put(host, mine.firstDifference(theirs));
+            }
+        }
+        return divergent;
+    }
+
+    /**
+     * Checks if this log is equal to another object. Logs are
+     * compared host by host through the digests of their operations,
+     * without traversing them (see divergentHosts to find out where
+     * two logs differ).
      * 
      * @param obj the object to compare with.
      * @return true if the logs are equal, false otherwise.
@@ -189,13 +430,22 @@ public class Log implements Serializable {
         if (obj == null || getClass() != obj.getClass())
             return false; // Return false if obj is null or not the same class
 
-        lock.readLock().lock(); // Acquire read lock for thread safety
-        try {
-            Log other = (Log) obj;
-            return log.equals(other.log); // Compare the log maps
-        } finally {
-            lock.readLock().unlock(); // Release read lock
+        Log other = (Log) obj;
+        for (Map.Entry<String, SegmentedLog> entry : log.entrySet()) {
+            SegmentedLog theirs = other.log.get(entry.getKey());
+            if (theirs == null ? !entry.getValue().isEmpty() : !entry.getValue().equals(theirs))
+                return false;
+        }
+        for (Map.Entry<String, SegmentedLog> entry : other.log.entrySet()) {
+            if (!log.containsKey(entry.getKey()) && !entry.getValue().isEmpty())
+                return false;
         }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(digest());
     }
 
     /**
@@ -209,16 +459,7 @@ public class Log implements Serializable {
             return false; // Return false if timestamp is null
         }
 
-        // Iterate over each host's operation list in the log
-        for (CopyOnWriteArrayList<Operation> operations : log.values()) {
-            // Check if any operation matches the given timestamp
-            for (Operation operation : operations) {
-                if (operation.getTimestamp().equals(timestamp)) {
-                    return true; // Return true if a match is found
-                }
-            }
-        }
-        return false; // Return false if no match is found
+        return byTimestamp.containsKey(timestamp);
     }
 
     /**
@@ -229,16 +470,67 @@ public class Log implements Serializable {
      * @return the timestamp of the operation, or null if not found.
      */
     public Timestamp getTimestampForOperation(Operation op) {
-        // Iterate over each host's operation list in the log
-        for (CopyOnWriteArrayList<Operation> operations : log.values()) {
-            // Check if the operation exists in the list
-            for (Operation operation : operations) {
-                if (operation.equals(op)) {
-                    return operation.getTimestamp(); // Return the timestamp if found
+        if (op == null) {
+            return null;
+        }
+        return byRecipe.get(op);
+    }
+
+    private void index(Operation op) {
+        byTimestamp.put(op.getTimestamp(), op);
+        if (!(op instanceof TombstoneOperation)) {
+            // (a compacted operation has no recipe: see compact)
+            byRecipe.put(op, op.getTimestamp());
+        }
+    }
+
+    private void unindex(Operation op) {
+        byTimestamp.remove(op.getTimestamp());
+        // an equal operation logged later by another host may own the entry
+        byRecipe.remove(op, op.getTimestamp());
+    }
+
+    /**
+     * Returns a copy of the log as it is now, to be serialized without
+     * holding any lock (e.g. a checkpoint). The copies of the per-host
+     * logs share their operations with this log (see SegmentedLog.copy),
+     * so it takes O(hosts). It must not be modified.
+     *
+     * @return the copy.
+     */
+    public Log snapshot() {
+        Log copy = new Log(new ArrayList<String>());
+        for (Map.Entry<String, SegmentedLog> entry : log.entrySet()) {
+            copy.log.put(entry.getKey(), entry.getValue().copy());
+        }
+        copy.duplicatesRejected.set(duplicatesRejected.get());
+        copy.outOfOrderRejected.set(outOfOrderRejected.get());
+        copy.compacted.set(compacted.get());
+        return copy;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        byTimestamp = new ConcurrentHashMap<>();
+        byRecipe = new ConcurrentHashMap<>();
+        removedBeforeAdd = ConcurrentHashMap.newKeySet();
+        indexLanes();
+        for (SegmentedLog operations : log.values()) {
+            for (Operation op : operations) {
+                index(op);
+            }
+        }
+        for (SegmentedLog operations : log.values()) {
+            for (Operation op : operations) {
+                if (op instanceof RemoveOperation) {
+                    Timestamp added = ((RemoveOperation) op).getRecipeTimestamp();
+                    SegmentedLog opeList = added == null ? null : log.get(added.getHostid());
+                    if (added != null && (opeList == null || !opeList.covers(added.getSeqnumber()))) {
+                        removedBeforeAdd.add(added);
+                    }
                 }
             }
         }
-        return null; // Return null if the operation is not found
     }
 
 
@@ -247,17 +539,12 @@ public class Log implements Serializable {
      */
     @Override
     public String toString() {
-        lock.readLock().lock();
-        try {
-            StringBuilder sb = new StringBuilder();
-            for (CopyOnWriteArrayList<Operation> sublog : log.values()) {
-                for (Operation op : sublog) {
-                    sb.append(op.toString()).append("\n");
-                }
+        StringBuilder sb = new StringBuilder();
+        for (SegmentedLog sublog : log.values()) {
+            for (Operation op : sublog) {
+                sb.append(op.toString()).append("\n");
             }
-            return sb.toString();
-        } finally {
-            lock.readLock().unlock();
         }
+        return sb.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,161 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package recipes_service.tsae.data_structures;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import util.VarInt;
+
+/**
+ * Registry of the participants of the group. Assigns each host id a dense
+ * int index (its position in the sorted list of ids), so the TSAE data
+ * structures can address hosts by index instead of hashing and comparing
+ * their string ids, and timestamps can be sent with the index only.
+ *
+ * The registry is built from Hosts.getIds() when TSAE starts (see
+ * ServerData.startTSAE). As every Server receives the same list of
+ * participants, all of them assign the same indices. Host ids that are
+ * not registered have index -1 and are handled by their string id.
+ */
+public final class Participants {
+
+    public static final int UNKNOWN = -1;
+
+    // largest list of hosts accepted by readHosts (a TimestampMatrix of
+    // MAX_HOSTS hosts takes 8 MB)
+    static final int MAX_HOSTS = 1024;
+
+    private static final class Registry {
+        final String[] ids;
+        final Map<String, Integer> indices;
+
+        Registry(String[] ids) {
+            this.ids = ids;
+            this.indices = new HashMap<>(ids.length * 2);
+            for (int i = 0; i < ids.length; i++) {
+                indices.put(ids[i], i);
+            }
+        }
+    }
+
+    private static volatile Registry registry = new Registry(new String[0]);
+
+    private Participants() {
+    }
+
+    /**
+     * Registers the participants of the group. Registering the same set
+     * of ids again (in any order) keeps the current indices.
+     *
+     * @param hostIds ids of the participants.
+     */
+    public static synchronized void register(List<String> hostIds) {
+        String[] ids = new TreeSet<>(hostIds).toArray(new String[0]);
+        if (!Arrays.equals(ids, registry.ids)) {
+            registry = new Registry(ids);
+        }
+    }
+
+    /**
+     * @param hostId id of a host.
+     * @return the index of the host, or UNKNOWN if it is not a registered participant.
+     */
+    public static int indexOf(String hostId) {
+        if (hostId == null) {
+            return UNKNOWN;
+        }
+        Integer index = registry.indices.get(hostId);
+        return index == null ? UNKNOWN : index;
+    }
+
+    /**
+     * @param index index of a registered participant.
+     * @return its host id, or null if there is no participant with that index.
+     */
+    public static String idOf(int index) {
+        String[] ids = registry.ids;
+        return index >= 0 && index < ids.length ? ids[index] : null;
+    }
+
+    /**
+     * @return number of registered participants.
+     */
+    public static int size() {
+        return registry.ids.length;
+    }
+
+    /**
+     * @return the ids of the registered participants, ordered by index.
+     */
+    public static List<String> ids() {
+        return Collections.unmodifiableList(new ArrayList<>(Arrays.asList(registry.ids)));
+    }
+
+    /**
+     * Writes the list of hosts of a TimestampVector or TimestampMatrix: a
+     * single byte if they are the registered participants (the usual
+     * case), the ids otherwise.
+     */
+    static void writeHosts(ObjectOutputStream out, String[] hosts) throws IOException {
+        String[] ids = registry.ids;
+        if (hosts == ids || Arrays.equals(hosts, ids)) {
+            VarInt.writeUnsigned(out, 0);
+            return;
+        }
+        VarInt.writeUnsigned(out, hosts.length + 1);
+        for (String host : hosts) {
+            out.writeUTF(host);
+        }
+    }
+
+    /**
+     * Reads a list of hosts written by writeHosts.
+     *
+     * @throws InvalidObjectException if the number of hosts is negative
+     *         or greater than MAX_HOSTS.
+     */
+    static String[] readHosts(ObjectInputStream in) throws IOException {
+        long count = VarInt.readUnsigned(in);
+        if (count == 0) {
+            return registry.ids;
+        }
+        if (count < 0 || count > MAX_HOSTS + 1) {
+            // (a malformed count may not fit in a positive long)
+            throw new InvalidObjectException("Invalid number of hosts: " + (count - 1));
+        }
+        String[] hosts = new String[(int) count - 1];
+        for (int i = 0; i < hosts.length; i++) {
+            hosts[i] = in.readUTF();
+        }
+        return hosts;
+    }
+}
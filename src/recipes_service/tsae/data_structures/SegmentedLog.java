@@ -0,0 +1,427 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package recipes_service.tsae.data_structures;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import recipes_service.data.Operation;
+
+/**
+ * Append-only log of the operations issued by a single host.
+ *
+ * Operations are stored in fixed-size segments that are never copied
+ * once allocated: appending only writes one slot and, every SEGMENT_SIZE
+ * operations, links a new segment into the segment directory. Readers
+ * work on an immutable Snapshot (segment directory + bounds), so they
+ * can iterate without locking while a single writer keeps appending.
+ * Purging only moves the head of the log forward and releases the
+ * segments that are left entirely behind it.
+ *
+ * Operations must be appended in sequence-number order; it is up to the
+ * caller (Log) to enforce it and to serialize writers through writeLock().
+ * The log remembers the highest sequence number ever appended and the
+ * (usually absent) gaps below it, so whether a sequence number has
+ * already been logged is answered in O(1), even after a purge.
+ */
+public class SegmentedLog implements Iterable<Operation>, Serializable {
+
+    private static final long serialVersionUID = 2391780419526104567L;
+
+    static final int SEGMENT_SIZE = 512;
+
+    /**
+     * Immutable view of the log: operations in positions [head, end) of the
+     * segment directory. Slots beyond end may be written by the writer
+     * but are never read through this snapshot.
+     * firstSeq and highWater are the first and the last sequence numbers
+     * ever appended; they are kept when operations are purged.
+     * digest is the sum of the digests of the operations in [head, end).
+     */
+    private static final class Snapshot {
+        final Operation[][] segments;
+        final int head;
+        final int end;
+        final long firstSeq;
+        final long highWater;
+        final long digest;
+
+        Snapshot(Operation[][] segments, int head, int end, long firstSeq, long highWater, long digest) {
+            this.segments = segments;
+            this.head = head;
+            this.end = end;
+            this.firstSeq = firstSeq;
+            this.highWater = highWater;
+            this.digest = digest;
+        }
+
+        Operation get(int i) {
+            return segments[i / SEGMENT_SIZE][i % SEGMENT_SIZE];
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(new Operation[0][], 0, 0, Long.MAX_VALUE, Long.MIN_VALUE, 0);
+
+    private transient volatile Snapshot snapshot = EMPTY;
+
+    // sequence numbers skipped between two appends (first -> last, inclusive).
+    // Only allocated when operations of this host are not contiguous.
+    private volatile ConcurrentSkipListMap<Long, Long> gaps = null;
+
+    // serializes writers (append and removeUpTo) of this host only
+    private transient Lock writeLock = new ReentrantLock();
+
+    /**
+     * @return the lock that writers of this log must hold.
+     */
+    public Lock writeLock() {
+        return writeLock;
+    }
+
+    /**
+     * Appends an operation at the end of the log. Callers must
+     * guarantee that there is a single writer at a time.
+     *
+     * @param op the operation to append.
+     */
+    public void append(Operation op) {
+        Snapshot s = snapshot;
+        long seq = op.getTimestamp().getSeqnumber();
+        if (s.highWater == Long.MIN_VALUE) {
+            s = new Snapshot(s.segments, s.head, s.end, seq, seq - 1, s.digest);
+        } else if (seq > s.highWater + 1) {
+            if (gaps == null) {
+                gaps = new ConcurrentSkipListMap<>();
+            }
+            gaps.put(s.highWater + 1, seq - 1);
+        }
+        Operation[][] segments = s.segments;
+        int segment = s.end / SEGMENT_SIZE;
+        if (segment == segments.length) {
+            // only the directory is copied; existing segments are shared
+            Operation[][] grown = new Operation[Math.max(4, segments.length * 2)][];
+            System.arraycopy(segments, 0, grown, 0, segments.length);
+            segments = grown;
+        }
+        if (segments[segment] == null) {
+            segments[segment] = new Operation[SEGMENT_SIZE];
+        }
+        segments[segment][s.end % SEGMENT_SIZE] = op;
+        snapshot = new Snapshot(segments, s.head, s.end + 1, s.firstSeq, seq, s.digest + op.digest());
+    }
+
+    /**
+     * Tells in O(1) whether an operation with the given sequence number
+     * has been appended to this log, even if it has been purged since.
+     *
+     * @param seq sequence number of an operation of this host.
+     * @return true if an operation with that sequence number was appended.
+     */
+    public boolean covers(long seq) {
+        Snapshot s = snapshot;
+        if (seq < s.firstSeq || seq > s.highWater) {
+            return false;
+        }
+        ConcurrentSkipListMap<Long, Long> skipped = gaps;
+        if (skipped == null) {
+            return true;
+        }
+        Map.Entry<Long, Long> gap = skipped.floorEntry(seq);
+        return gap == null || seq > gap.getValue();
+    }
+
+    /**
+     * @return the highest sequence number ever appended to this log,
+     *         or Long.MIN_VALUE if nothing has been appended.
+     */
+    public long highWater() {
+        return snapshot.highWater;
+    }
+
+    /**
+     * @return the number of operations in the log.
+     */
+    public int size() {
+        Snapshot s = snapshot;
+        return s.end - s.head;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the last appended operation, or null if the log is empty.
+     */
+    public Operation last() {
+        Snapshot s = snapshot;
+        return s.end == s.head ? null : s.get(s.end - 1);
+    }
+
+    /**
+     * Digest of the content of the log: the sum of the digests of its
+     * operations. It is kept up to date by append, replace and removeUpTo,
+     * so reading it is O(1).
+     *
+     * @return the digest of the operations in the log (0 if empty).
+     */
+    public long digest() {
+        return snapshot.digest;
+    }
+
+    /**
+     * Locates where this log and another one start to differ.
+     *
+     * @param other the log to compare with.
+     * @return the timestamp of the first operation that is different in
+     *         both logs (taken from this log if it has it), or null if both
+     *         logs contain the same operations.
+     */
+    public Timestamp firstDifference(SegmentedLog other) {
+        Snapshot s = snapshot;
+        Snapshot o = other.snapshot;
+        int i = s.head;
+        int j = o.head;
+        for (; i < s.end && j < o.end; i++, j++) {
+            if (!s.get(i).equals(o.get(j))) {
+                return s.get(i).getTimestamp();
+            }
+        }
+        if (i < s.end) {
+            return s.get(i).getTimestamp();
+        }
+        return j < o.end ? o.get(j).getTimestamp() : null;
+    }
+
+    /**
+     * @return an iterator over all the operations of the log.
+     */
+    @Override
+    public Iterator<Operation> iterator() {
+        Snapshot s = snapshot;
+        return new SnapshotIterator(s, s.head, s.end);
+    }
+
+    /**
+     * Returns an iterator over the operations newer than lastSeen. The
+     * first one is located by binary search on the sequence number.
+     *
+     * @param lastSeen last timestamp known for this host (may be null).
+     * @return an iterator over the operations newer than lastSeen.
+     */
+    public Iterator<Operation> newer(Timestamp lastSeen) {
+        Snapshot s = snapshot;
+        return new SnapshotIterator(s, firstNewer(s, lastSeen), s.end);
+    }
+
+    /**
+     * Removes the operations whose sequence number is not newer than seq. As they
+     * are a prefix of the log, the head is moved past them and the
+     * segments left behind are released; no operation is copied.
+     * Callers must guarantee that there is a single writer at a time.
+     *
+     * @param seq sequence number up to which (inclusive) operations are removed.
+     * @return an iterator over the removed operations.
+     */
+    public Iterator<Operation> removeUpTo(long seq) {
+        Snapshot s = snapshot;
+        int head = firstNewer(s, seq);
+        if (head == s.head) {
+            return new SnapshotIterator(s, head, head);
+        }
+        Operation[][] segments = s.segments;
+        int released = head / SEGMENT_SIZE;
+        if (released > 0) {
+            segments = new Operation[Math.max(4, s.segments.length - released)][];
+            System.arraycopy(s.segments, released, segments, 0, s.segments.length - released);
+        }
+        long digest = s.digest;
+        for (int i = s.head; i < head; i++) {
+            digest -= s.get(i).digest();
+        }
+        int shift = released * SEGMENT_SIZE;
+        snapshot = new Snapshot(segments, head - shift, s.end - shift, s.firstSeq, s.highWater, digest);
+        return new SnapshotIterator(s, s.head, head);
+    }
+
+    /**
+     * Replaces a logged operation by another one with the same timestamp
+     * (used to compact the log). The segment that holds it is copied
+     * first (and the segment directory), so readers holding an older
+     * snapshot, or a copy being serialized, keep seeing the log they took.
+     * Callers must guarantee that there is a single writer at a time.
+     *
+     * @param op the logged operation.
+     * @param replacement the operation that takes its place.
+     * @return true if op was found in the log and replaced.
+     */
+    public boolean replace(Operation op, Operation replacement) {
+        Snapshot s = snapshot;
+        long seq = op.getTimestamp().getSeqnumber();
+        int low = s.head;
+        int high = s.end - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midSeq = s.get(mid).getTimestamp().getSeqnumber();
+            if (midSeq < seq) {
+                low = mid + 1;
+            } else if (midSeq > seq) {
+                high = mid - 1;
+            } else {
+                if (!s.get(mid).equals(op)) {
+                    return false;
+                }
+                Operation[][] segments = s.segments.clone();
+                int segment = mid / SEGMENT_SIZE;
+                segments[segment] = segments[segment].clone();
+                segments[segment][mid % SEGMENT_SIZE] = replacement;
+                long digest = s.digest - op.digest() + replacement.digest();
+                snapshot = new Snapshot(segments, s.head, s.end, s.firstSeq, s.highWater, digest);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Binary search over a sequence-ordered snapshot.
+     *
+     * @return position of the first operation newer than lastSeen, or end if none.
+     */
+    private static int firstNewer(Snapshot s, Timestamp lastSeen) {
+        // Timestamp.compare(null) compares with 0
+        return firstNewer(s, lastSeen == null ? 0 : lastSeen.getSeqnumber());
+    }
+
+    private static int firstNewer(Snapshot s, long lastSeen) {
+        int low = s.head;
+        int high = s.end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (s.get(mid).getTimestamp().getSeqnumber() > lastSeen) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private static final class SnapshotIterator implements Iterator<Operation> {
+        private final Snapshot snapshot;
+        private final int end;
+        private int next;
+
+        SnapshotIterator(Snapshot snapshot, int from, int end) {
+            this.snapshot = snapshot;
+            this.next = from;
+            this.end = end;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < end;
+        }
+
+        @Override
+        public Operation next() {
+            if (next >= end) {
+                throw new NoSuchElementException();
+            }
+            return snapshot.get(next++);
+        }
+    }
+
+    /**
+     * Returns a copy of the log as it is now, that shares the segments
+     * of this one (no operation is copied): it can be serialized while
+     * operations keep being appended to this log. It must not be modified.
+     *
+     * @return the copy.
+     */
+    SegmentedLog copy() {
+        SegmentedLog copy = new SegmentedLog();
+        ConcurrentSkipListMap<Long, Long> skipped = gaps;
+        copy.gaps = skipped == null ? null : new ConcurrentSkipListMap<Long, Long>(skipped);
+        copy.snapshot = snapshot;
+        return copy;
+    }
+
+    /**
+     * Only the live operations are serialized (not the empty slots of the
+     * first and last segments).
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        Snapshot s = snapshot;
+        out.writeLong(s.firstSeq);
+        out.writeLong(s.highWater);
+        out.writeInt(s.end - s.head);
+        for (int i = s.head; i < s.end; i++) {
+            out.writeObject(s.get(i));
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        writeLock = new ReentrantLock();
+        snapshot = EMPTY;
+        long firstSeq = in.readLong();
+        long highWater = in.readLong();
+        int size = in.readInt();
+        ConcurrentSkipListMap<Long, Long> skipped = gaps;
+        for (int i = 0; i < size; i++) {
+            append((Operation) in.readObject());
+        }
+        Snapshot s = snapshot;
+        snapshot = new Snapshot(s.segments, s.head, s.end, firstSeq, highWater, s.digest);
+        gaps = skipped;
+    }
+
+    /**
+     * Two segmented logs are equal if they contain the same operations
+     * in the same order; compared through their sizes and digests.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        Snapshot s = snapshot;
+        Snapshot o = ((SegmentedLog) obj).snapshot;
+        return s.end - s.head == o.end - o.head && s.digest == o.digest;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(snapshot.digest);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package recipes_service.tsae.data_structures;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import util.VarInt;
+
+/**
+ * Summary and ack sent in a TSAE session, either complete or as the
+ * differences with a previous state (the base) already known by the
+ * receiver: the changed entries of the summary and the changed rows of
+ * the ack. Each state sent is identified by a stateId chosen by the
+ * sender; the receiver rebuilds the complete state from the base with
+ * that id (see recipes_service.tsae.sessions.DeltaExchange).
+ */
+public class SummaryAckDelta implements Serializable {
+
+    private static final long serialVersionUID = 6043728215609911934L;
+
+    public static final long NO_BASE = 0;
+
+    private final long stateId;
+    private final long baseId;
+
+    // complete state (baseId == NO_BASE)
+    private final TimestampVector summary;
+    private final TimestampMatrix ack;
+
+    // differences with the base (baseId != NO_BASE), serialized by writeObject
+    private transient int[] entries;
+    private transient long[] entrySeqs;
+    private transient int[] rows;
+    private transient long[][] rowSeqs;
+
+    private SummaryAckDelta(long stateId, long baseId, TimestampVector summary, TimestampMatrix ack,
+            int[] entries, long[] entrySeqs, int[] rows, long[][] rowSeqs) {
+        this.stateId = stateId;
+        this.baseId = baseId;
+        this.summary = summary;
+        this.ack = ack;
+        this.entries = entries;
+        this.entrySeqs = entrySeqs;
+        this.rows = rows;
+        this.rowSeqs = rowSeqs;
+    }
+
+    /**
+     * @return the complete state.
+     */
+    public static SummaryAckDelta full(long stateId, TimestampVector summary, TimestampMatrix ack) {
+        return new SummaryAckDelta(stateId, NO_BASE, summary, ack, null, null, null, null);
+    }
+
+    /**
+     * Computes the differences between a state and a base state. Rows of
+     * the ack that have not been written since the base was taken are
+     * shared with it (see TimestampMatrix.snapshot), so they are skipped
+     * without comparing them. Falls back to the complete state if the
+     * base has a different set of participants.
+     *
+     * @param stateId id of the state.
+     * @param summary snapshot of the summary.
+     * @param ack snapshot of the ack.
+     * @param baseId id of the base state.
+     * @param baseSummary summary of the base state.
+     * @param baseAck ack of the base state.
+     */
+    public static SummaryAckDelta diff(long stateId, TimestampVector summary, TimestampMatrix ack,
+            long baseId, TimestampVector baseSummary, TimestampMatrix baseAck) {
+        if (!summary.sameLayout(baseSummary) || !ack.sameLayout(baseAck)) {
+            return full(stateId, summary, ack);
+        }
+        int n = summary.size();
+        int[] entries = new int[n];
+        long[] entrySeqs = new long[n];
+        int changedEntries = 0;
+        for (int i = 0; i < n; i++) {
+            long seq = summary.seqAt(i);
+            if (seq != baseSummary.seqAt(i)) {
+                entries[changedEntries] = i;
+                entrySeqs[changedEntries++] = seq;
+            }
+        }
+        int m = ack.size();
+        int[] rows = new int[m];
+        long[][] rowSeqs = new long[m][];
+        int changedRows = 0;
+        for (int row = 0; row < m; row++) {
+            long[] current = ack.rowAt(row);
+            long[] base = baseAck.rowAt(row);
+            if (current != base && !Arrays.equals(current, base)) {
+                rows[changedRows] = row;
+                rowSeqs[changedRows++] = current;
+            }
+        }
+        return new SummaryAckDelta(stateId, baseId, null, null,
+                Arrays.copyOf(entries, changedEntries), Arrays.copyOf(entrySeqs, changedEntries),
+                Arrays.copyOf(rows, changedRows), Arrays.copyOf(rowSeqs, changedRows));
+    }
+
+    public long getStateId() {
+        return stateId;
+    }
+
+    /**
+     * @return id of the base state, or NO_BASE if this is a complete state.
+     */
+    public long getBaseId() {
+        return baseId;
+    }
+
+    public boolean isDelta() {
+        return baseId != NO_BASE;
+    }
+
+    /**
+     * Checks that the differences fit the base state: positions of summary
+     * entries and ack rows within its dimensions, and rows of its length.
+     *
+     * @param baseSummary summary of the base state.
+     * @param baseAck ack of the base state.
+     * @throws IOException if they do not fit (the delta is corrupt).
+     */
+    public void checkBase(TimestampVector baseSummary, TimestampMatrix baseAck) throws IOException {
+        if (!isDelta()) {
+            return;
+        }
+        for (int entry : entries) {
+            if (entry >= baseSummary.size()) {
+                throw new IOException("summary entry " + entry + " out of a base of " + baseSummary.size());
+            }
+        }
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] >= baseAck.size()) {
+                throw new IOException("ack row " + rows[i] + " out of a base of " + baseAck.size());
+            }
+            if (rowSeqs[i].length != baseAck.rowAt(rows[i]).length) {
+                throw new IOException("ack row " + rows[i] + " of length " + rowSeqs[i].length
+                        + " instead of " + baseAck.rowAt(rows[i]).length);
+            }
+        }
+    }
+
+    /**
+     * @param baseSummary summary of the base state (ignored if this is a complete state).
+     * @return the complete summary.
+     */
+    public TimestampVector summary(TimestampVector baseSummary) {
+        return isDelta() ? baseSummary.withEntries(entries, entrySeqs) : summary;
+    }
+
+    /**
+     * @param baseAck ack of the base state (ignored if this is a complete state).
+     * @return the complete ack.
+     */
+    public TimestampMatrix ack(TimestampMatrix baseAck) {
+        return isDelta() ? baseAck.withRows(rows, rowSeqs) : ack;
+    }
+
+    /**
+     * Differences are written as variable-length integers: positions, and
+     * sequence numbers relative to Timestamp.NULL_TIMESTAMP_SEQ_NUMBER.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        if (!isDelta()) {
+            return;
+        }
+        VarInt.writeUnsigned(out, entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            VarInt.writeUnsigned(out, entries[i]);
+            VarInt.writeSigned(out, entrySeqs[i] - Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+        }
+        VarInt.writeUnsigned(out, rows.length);
+        for (int i = 0; i < rows.length; i++) {
+            VarInt.writeUnsigned(out, rows[i]);
+            VarInt.writeUnsigned(out, rowSeqs[i].length);
+            for (long seq : rowSeqs[i]) {
+                VarInt.writeSigned(out, seq - Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+            }
+        }
+    }
+
+    /**
+     * Positions, counts and row lengths are checked against the number of
+     * participants (a delta is only exchanged between participants); see
+     * also checkBase.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (!isDelta()) {
+            return;
+        }
+        int participants = Participants.size();
+        int n = readIndex(in, participants + 1);
+        entries = new int[n];
+        entrySeqs = new long[n];
+        for (int i = 0; i < n; i++) {
+            entries[i] = readIndex(in, participants);
+            entrySeqs[i] = VarInt.readSigned(in) + Timestamp.NULL_TIMESTAMP_SEQ_NUMBER;
+        }
+        int m = readIndex(in, participants + 1);
+        rows = new int[m];
+        rowSeqs = new long[m][];
+        for (int i = 0; i < m; i++) {
+            rows[i] = readIndex(in, participants);
+            rowSeqs[i] = new long[readIndex(in, participants + 1)];
+            for (int column = 0; column < rowSeqs[i].length; column++) {
+                rowSeqs[i][column] = VarInt.readSigned(in) + Timestamp.NULL_TIMESTAMP_SEQ_NUMBER;
+            }
+        }
+    }
+
+    private static int readIndex(ObjectInputStream in, int size) throws IOException {
+        long value = VarInt.readUnsigned(in);
+        if (value < 0 || value >= size) {
+            throw new InvalidObjectException("delta index out of range: " + value + " (participants: " + Participants.size() + ")");
+        }
+        return (int) value;
+    }
+
+    @Override
+    public String toString() {
+        if (!isDelta()) {
+            return "summary=" + summary + ", ack=" + ack;
+        }
+        return "state " + stateId + " from " + baseId + ": " + entries.length + " summary entries, "
+                + rows.length + " ack rows";
+    }
+}
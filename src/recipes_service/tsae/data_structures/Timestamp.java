@@ -19,8 +19,14 @@
 */
 
 package recipes_service.tsae.data_structures;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
+import util.Hash64;
+
 /**
  * @author Joan-Manuel Marques, Daniel Lázaro Iglesias
  * December 2012
@@ -31,7 +37,7 @@ public class Timestamp implements Serializable{
 	/**
 	 * 
 	 */
-	private static final long serialVersionUID = 4178027349883987517L;
+	private static final long serialVersionUID = 4308396666771154910L;
 	/**
 	 * This class represents the timestamp of an operation.
 	 * Contains the node that issued the operation, and
@@ -39,16 +45,29 @@ public class Timestamp implements Serializable{
 	 * to other operations issued by that node.
 	 */
 	
-	private String hostid;
-	private long seqnumber;
+	private transient String hostid;
+	private transient long seqnumber;
+	// dense index of hostid in the Participants registry (Participants.UNKNOWN if not registered)
+	private transient int host;
 	
 	public Timestamp(String nodeid, long seqnumber){
 		this.hostid = nodeid;
 		this.seqnumber = seqnumber;
+		this.host = Participants.indexOf(nodeid);
 	}
 	public String getHostid() {
 		return hostid;
 	}
+	/**
+	 * @return index of the host in the Participants registry, or
+	 * Participants.UNKNOWN if the host is not a registered participant
+	 */
+	public int getHostIndex() {
+		return host;
+	}
+	public long getSeqnumber() {
+		return seqnumber;
+	}
 	
 	public boolean isNullTimestamp(){
 		return seqnumber < 0;
@@ -67,6 +86,25 @@ public class Timestamp implements Serializable{
 		return seqnumber-t.seqnumber;
 	}
 	
+	/**
+	 * 64-bit hash of the timestamp (see util.Hash64)
+	 */
+	public long digest() {
+		return Hash64.combine(Hash64.of(hostid), seqnumber);
+	}
+
+	/**
+	 * hashCode
+	 */
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((hostid == null) ? 0 : hostid.hashCode());
+		result = prime * result + (int) (seqnumber ^ (seqnumber >>> 32));
+		return result;
+	}
+
 	/**
 	 * equals
 	 */
@@ -79,16 +117,44 @@ public class Timestamp implements Serializable{
 		if (getClass() != obj.getClass())
 			return false;
 		Timestamp other = (Timestamp) obj;
+		if (seqnumber != other.seqnumber)
+			return false;
+		if (host != Participants.UNKNOWN && other.host != Participants.UNKNOWN)
+			return host == other.host;
 		if (hostid == null) {
 			if (other.hostid != null)
 				return false;
 		} else if (!hostid.equals(other.hostid))
 			return false;
-		if (seqnumber != other.seqnumber)
-			return false;
 		return true;
 	}
 	
+	/**
+	 * Timestamps of registered participants are sent with the index of
+	 * the host instead of its id
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.writeInt(host);
+		if (host == Participants.UNKNOWN) {
+			out.writeObject(hostid);
+		}
+		out.writeLong(seqnumber);
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		host = in.readInt();
+		if (host == Participants.UNKNOWN) {
+			hostid = (String) in.readObject();
+			host = Participants.indexOf(hostid);
+		} else {
+			hostid = Participants.idOf(host);
+			if (hostid == null) {
+				throw new InvalidObjectException("Timestamp of unknown participant: " + host);
+			}
+		}
+		seqnumber = in.readLong();
+	}
+	
 	/**
 	 * toString
 	 */
@@ -20,40 +20,163 @@
 
 package recipes_service.tsae.data_structures;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+import java.util.TreeSet;
 
-import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
-import lsim.library.api.LSimLogger;
+import util.VarInt;
 
 /**
+ * The matrix is stored as one primitive long[] per row (one row per node,
+ * one column per host, participants sorted by id as in TimestampVector).
+ * The minimum of each column (the last operation of the host acknowledged
+ * by every node) is maintained incrementally as entries change, together
+ * with the number of entries that hold it: only when the last of them is
+ * raised is the column scanned again. Reading the minimum costs O(1).
+ *
+ * snapshot() publishes an immutable copy of the matrix that shares its
+ * rows with the live matrix; a row is copied only the first time it is
+ * written after the snapshot (copy-on-write). Snapshots are cached by
+ * version, so they are only taken again when the matrix has changed.
+ *
  * @author Joan-Manuel Marques, Daniel Lázaro Iglesias
  * December 2012
  *
  */
 public class TimestampMatrix implements Serializable {
 
-    private static final long serialVersionUID = 3331148113387926667L;
-    private ConcurrentHashMap<String, TimestampVector> timestampMatrix = new ConcurrentHashMap<>();
+    private static final long serialVersionUID = 1272781478083578470L;
+
+    // participants, sorted by id: index of rows and columns
+    // (serialized by writeObject)
+    private transient String[] hosts;
+    // n x n sequence numbers: rows[row][column]
+    private transient long[][] rows;
+
+    // not serialized; rebuilt by readObject
+    private transient Map<String, Integer> positions;
+    // minimum of each column and number of entries of the column equal to it
+    private transient long[] columnMin;
+    private transient int[] atMin;
+
+    // copy-on-write: rows shared with the last snapshot
+    private transient boolean[] shared;
+    // number of changes applied to the matrix
+    private transient long version;
+    private transient TimestampMatrix snapshot;
+    // true for snapshots: they cannot be modified
+    private transient boolean frozen;
 
     public TimestampMatrix(List<String> participants) {
         // Create an empty TimestampMatrix
-        for (String participant : participants) {
-            timestampMatrix.put(participant, new TimestampVector(participants));
+        this.hosts = new TreeSet<>(participants).toArray(new String[0]);
+        this.rows = new long[hosts.length][hosts.length];
+        for (long[] row : rows) {
+            Arrays.fill(row, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+        }
+        index();
+    }
+
+    /**
+     * Copy constructor (see clone and snapshot): rows are taken as given.
+     */
+    private TimestampMatrix(TimestampMatrix original, long[][] rows) {
+        this.hosts = original.hosts;
+        this.positions = original.positions;
+        this.rows = rows;
+        this.columnMin = original.columnMin.clone();
+        this.atMin = original.atMin.clone();
+        this.shared = new boolean[hosts.length];
+        this.version = original.version;
+    }
+
+    private void index() {
+        int n = hosts.length;
+        positions = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            positions.put(hosts[i], i);
+        }
+        columnMin = new long[n];
+        atMin = new int[n];
+        for (int column = 0; column < n; column++) {
+            recomputeColumn(column);
+        }
+        shared = new boolean[n];
+    }
+
+    private int positionOf(String node) {
+        Integer position = node == null ? null : positions.get(node);
+        return position == null ? -1 : position;
+    }
+
+    private void recomputeColumn(int column) {
+        long min = Long.MAX_VALUE;
+        int count = 0;
+        for (long[] row : rows) {
+            long seq = row[column];
+            if (seq < min) {
+                min = seq;
+                count = 1;
+            } else if (seq == min) {
+                count++;
+            }
+        }
+        columnMin[column] = min;
+        atMin[column] = count;
+    }
+
+    /**
+     * Sets an entry, keeping the minimum of its column up to date.
+     */
+    private void set(int row, int column, long seq) {
+        if (frozen) {
+            throw new UnsupportedOperationException("TimestampMatrix snapshots cannot be modified");
+        }
+        long old = rows[row][column];
+        if (old == seq) {
+            return;
+        }
+        if (shared[row]) {
+            // the row belongs to a snapshot too: copy it before writing
+            rows[row] = rows[row].clone();
+            shared[row] = false;
+        }
+        rows[row][column] = seq;
+        version++;
+        long min = columnMin[column];
+        if (seq < min) {
+            columnMin[column] = seq;
+            atMin[column] = 1;
+        } else if (seq == min) {
+            atMin[column]++;
+        } else if (old == min && --atMin[column] == 0) {
+            // the last entry holding the minimum has been raised
+            recomputeColumn(column);
         }
     }
 
     /**
      * @param node
      * @return the timestamp vector of node in this timestamp matrix
+     * (a copy: it is not updated when the matrix changes), or null
+     * if node is not a participant
      */
-    public TimestampVector getTimestampVector(String node) {
-        return timestampMatrix.get(node);
+    public synchronized TimestampVector getTimestampVector(String node) {
+        int row = positionOf(node);
+        if (row < 0) {
+            return null;
+        }
+        TimestampVector vector = new TimestampVector(Arrays.asList(hosts));
+        for (int column = 0; column < hosts.length; column++) {
+            vector.setAt(column, rows[row][column]);
+        }
+        return vector;
     }
 
     /**
@@ -61,27 +184,69 @@ public class TimestampMatrix implements Serializable {
      * @param tsMatrix
      */
     public synchronized void updateMax(TimestampMatrix tsMatrix) {
-        // For each node in the matrix being merged
-        for (String node : tsMatrix.timestampMatrix.keySet()) {
-            // Get or create timestamp vector for this node
-            TimestampVector currentVector = timestampMatrix.get(node);
-            if (currentVector == null) {
-                currentVector = new TimestampVector(new ArrayList<>(timestampMatrix.keySet()));
-                timestampMatrix.put(node, currentVector);
+        long[][] other = tsMatrix.snapshot().rows;
+        int n = hosts.length;
+        if (Arrays.equals(hosts, tsMatrix.hosts)) {
+            for (int row = 0; row < n; row++) {
+                for (int column = 0; column < n; column++) {
+                    if (other[row][column] > rows[row][column]) {
+                        set(row, column, other[row][column]);
+                    }
+                }
+            }
+            return;
+        }
+        // different participants: merge the common ones
+        int m = tsMatrix.hosts.length;
+        for (int r = 0; r < m; r++) {
+            int row = positionOf(tsMatrix.hosts[r]);
+            for (int c = 0; row >= 0 && c < m; c++) {
+                int column = positionOf(tsMatrix.hosts[c]);
+                if (column >= 0 && other[r][c] > rows[row][column]) {
+                    set(row, column, other[r][c]);
+                }
             }
-            
-            // Update with max values from other matrix's vector
-            currentVector.updateMax(tsMatrix.getTimestampVector(node));
         }
     }
 
     /**
      * Updates the timestamp vector of node with the given timestamp vector
+     * (elementwise maximum: an entry is never lowered, so an update with an
+     * older snapshot of a summary is harmless)
      * @param node Node to update
      * @param tsVector New timestamp vector
      */
-    public void update(String node, TimestampVector tsVector) {
-        timestampMatrix.put(node, tsVector);
+    public synchronized void update(String node, TimestampVector tsVector) {
+        int row = positionOf(node);
+        if (row < 0 || tsVector == null) {
+            return;
+        }
+        if (Arrays.equals(hosts, tsVector.hosts())) {
+            for (int column = 0; column < hosts.length; column++) {
+                long seq = tsVector.seqAt(column);
+                if (seq > rows[row][column]) {
+                    set(row, column, seq);
+                }
+            }
+        } else {
+            for (int column = 0; column < hosts.length; column++) {
+                Timestamp last = tsVector.getLast(hosts[column]);
+                if (last != null && last.getSeqnumber() > rows[row][column]) {
+                    set(row, column, last.getSeqnumber());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param host
+     * @return the minimum sequence number of host among all the timestamp
+     * vectors in this matrix (the last operation of host acknowledged by every
+     * node), or Timestamp.NULL_TIMESTAMP_SEQ_NUMBER if host is not a participant
+     */
+    public synchronized long minSeqnumber(String host) {
+        int column = positionOf(host);
+        return column < 0 ? Timestamp.NULL_TIMESTAMP_SEQ_NUMBER : columnMin[column];
     }
 
     /**
@@ -89,30 +254,73 @@ public class TimestampMatrix implements Serializable {
      * the minimum timestamp among all timestamp vectors in this matrix
      */
     public synchronized TimestampVector minTimestampVector() {
-        // Initialize result with first vector's values
-        if (timestampMatrix.isEmpty()) {
+        if (hosts.length == 0) {
             return null;
         }
+        TimestampVector minVector = new TimestampVector(Arrays.asList(hosts));
+        for (int column = 0; column < hosts.length; column++) {
+            minVector.setAt(column, columnMin[column]);
+        }
+        return minVector;
+    }
 
-        // Create result vector with all participants
-        TimestampVector minVector = new TimestampVector(new ArrayList<>(timestampMatrix.keySet()));
+    // row access for SummaryAckDelta. Rows of snapshots are never modified.
 
-        // For each vector in the matrix
-        boolean first = true;
-        for (TimestampVector vector : timestampMatrix.values()) {
-            if (first) {
-                // Initialize with first vector's values
-                for (String participant : vector.getTimestamps().keySet()) {
-                    minVector.update(participant, vector.getLast(participant));
-                }
-                first = false;
-            } else {
-                // Take minimum values
-                minVector.mergeMin(vector);
-            }
+    boolean sameLayout(TimestampMatrix other) {
+        return hosts == other.hosts || Arrays.equals(hosts, other.hosts);
+    }
+
+    int size() {
+        return hosts.length;
+    }
+
+    synchronized long[] rowAt(int row) {
+        return rows[row];
+    }
+
+    /**
+     * @return an immutable copy of this matrix (that must be a snapshot)
+     * with the given rows replaced; the other rows are shared
+     */
+    TimestampMatrix withRows(int[] positions, long[][] values) {
+        long[][] copy = rows.clone();
+        for (int i = 0; i < positions.length; i++) {
+            copy[positions[i]] = values[i];
         }
+        TimestampMatrix matrix = new TimestampMatrix(this, copy);
+        for (int column = 0; column < hosts.length; column++) {
+            matrix.recomputeColumn(column);
+        }
+        matrix.frozen = true;
+        return matrix;
+    }
 
-        return minVector;
+    /**
+     * @return number of changes applied to this matrix. It only grows, so
+     * two equal versions of the same matrix mean that nothing has changed.
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Returns an immutable copy of the current state of this matrix. It
+     * shares the rows with this matrix (see class comment) and is reused
+     * until the matrix changes, so taking it needs no lock from the caller
+     * and, most of the times, no copy.
+     * Snapshots are mutable again once deserialized.
+     */
+    public synchronized TimestampMatrix snapshot() {
+        if (frozen) {
+            return this;
+        }
+        if (snapshot == null || snapshot.version != version) {
+            TimestampMatrix copy = new TimestampMatrix(this, rows.clone());
+            copy.frozen = true;
+            Arrays.fill(shared, true);
+            snapshot = copy;
+        }
+        return snapshot;
     }
 
     /**
@@ -120,22 +328,55 @@ public class TimestampMatrix implements Serializable {
      */
     @Override
     public synchronized TimestampMatrix clone() {
-        TimestampMatrix clonedMatrix = new TimestampMatrix(new ArrayList<>(timestampMatrix.keySet()));
-        for (String node : timestampMatrix.keySet()) {
-            clonedMatrix.timestampMatrix.put(node, timestampMatrix.get(node).clone());
+        long[][] copy = new long[rows.length][];
+        for (int row = 0; row < rows.length; row++) {
+            copy[row] = rows[row].clone();
         }
-        return clonedMatrix;
+        return new TimestampMatrix(this, copy);
     }
 
     /**
      * Checks if this matrix equals another object
      */
     @Override
-    public synchronized boolean equals(Object obj) {
+    public boolean equals(Object obj) {
         if (this == obj) return true;
         if (obj == null || getClass() != obj.getClass()) return false;
         TimestampMatrix other = (TimestampMatrix) obj;
-        return timestampMatrix.equals(other.timestampMatrix);
+        // snapshots are immutable: no need to hold both locks
+        return Arrays.equals(hosts, other.hosts) && Arrays.deepEquals(snapshot().rows, other.snapshot().rows);
+    }
+
+    @Override
+    public synchronized int hashCode() {
+        return Arrays.deepHashCode(rows);
+    }
+
+    /**
+     * Compact encoding: the hosts (see Participants.writeHosts) and the
+     * sequence numbers, row by row, as variable-length integers relative
+     * to Timestamp.NULL_TIMESTAMP_SEQ_NUMBER.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        Participants.writeHosts(out, hosts);
+        for (long[] row : rows) {
+            for (long seq : row) {
+                VarInt.writeSigned(out, seq - Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        hosts = Participants.readHosts(in); // (its size is checked)
+        rows = new long[hosts.length][hosts.length];
+        for (long[] row : rows) {
+            for (int column = 0; column < row.length; column++) {
+                row[column] = VarInt.readSigned(in) + Timestamp.NULL_TIMESTAMP_SEQ_NUMBER;
+            }
+        }
+        index();
     }
 
     /**
@@ -144,14 +385,13 @@ public class TimestampMatrix implements Serializable {
     @Override
     public synchronized String toString() {
         StringBuilder sb = new StringBuilder();
-        if (timestampMatrix == null) {
-            return sb.toString();
-        }
-        for (String node : timestampMatrix.keySet()) {
-            TimestampVector vector = timestampMatrix.get(node);
-            if (vector != null) {
-                sb.append(node).append(":   ").append(vector).append("\n");
+        int n = hosts.length;
+        for (int row = 0; row < n; row++) {
+            sb.append(hosts[row]).append(":   ");
+            for (int column = 0; column < n; column++) {
+                sb.append(hosts[column]).append(":   ").append(rows[row][column]).append("\n");
             }
+            sb.append("\n");
         }
         return sb.toString();
     }
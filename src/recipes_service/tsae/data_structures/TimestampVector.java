@@ -1,36 +1,208 @@
 package recipes_service.tsae.data_structures;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
 import lsim.library.api.LSimLogger;
+import util.VarInt;
 
+/**
+ * Vector with the last sequence number seen from each participant.
+ *
+ * Sequence numbers are stored in an AtomicLongArray, one position per
+ * participant (participants sorted by id). When the participants are the
+ * ones registered in Participants, the position of a host is its index in
+ * the registry, so timestamps are located without hashing their host id.
+ * Merges run over the primitive array and allocate nothing; each position
+ * is updated atomically (compare-and-set), as the entries of the map used
+ * before.
+ *
+ * snapshot() publishes an immutable copy of the vector, cached until the
+ * vector changes (see version()), so readers such as TSAE sessions can
+ * take it without locking and, most of the times, without copying.
+ */
 public class TimestampVector implements Serializable {
-    private static final long serialVersionUID = -765026247959198886L;
+    private static final long serialVersionUID = 486534537576197409L;
 
-    private final ConcurrentHashMap<String, Timestamp> timestampVector = new ConcurrentHashMap<>();
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // participants, sorted by id; the position of a host in this array is
+    // its position in seqs
+    // serialized by writeObject
+    private transient String[] hosts;
+    private transient AtomicLongArray seqs;
+
+    // position of each host id (rebuilt by readObject)
+    private transient Map<String, Integer> positions;
+    // true if hosts are exactly the registered Participants (position == host index)
+    private transient boolean dense;
+
+    // number of changes applied to the vector
+    private transient AtomicLong version = new AtomicLong();
+    private transient volatile TimestampVector snapshot;
+    // true for snapshots: they cannot be modified
+    private transient boolean frozen;
 
     public TimestampVector(List<String> participants) {
-        lock.writeLock().lock();
-        try {
-            for (String id : participants) {
-                timestampVector.put(id, new Timestamp(id, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER));
+        this.hosts = new TreeSet<>(participants).toArray(new String[0]);
+        this.seqs = new AtomicLongArray(hosts.length);
+        for (int i = 0; i < hosts.length; i++) {
+            seqs.set(i, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+        }
+        index();
+    }
+
+    /**
+     * Copy constructor (see clone): shares the immutable layout.
+     */
+    private TimestampVector(TimestampVector original) {
+        this.hosts = original.hosts;
+        this.positions = original.positions;
+        this.dense = original.dense;
+        this.seqs = new AtomicLongArray(hosts.length);
+        for (int i = 0; i < hosts.length; i++) {
+            seqs.set(i, original.seqs.get(i));
+        }
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new UnsupportedOperationException("TimestampVector snapshots cannot be modified");
+        }
+    }
+
+    /**
+     * @return number of changes applied to this vector. It only grows, so
+     * two equal versions of the same vector mean that nothing has changed.
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Returns an immutable copy of the current state of this vector. It is
+     * reused until the vector changes. Snapshots are mutable again once
+     * deserialized.
+     */
+    public TimestampVector snapshot() {
+        if (frozen) {
+            return this;
+        }
+        TimestampVector current = snapshot;
+        long v = version.get();
+        if (current == null || current.version.get() != v) {
+            // changes made while copying are included and make the next
+            // call take a new snapshot
+            current = new TimestampVector(this);
+            current.version.set(v);
+            current.frozen = true;
+            snapshot = current;
+        }
+        return current;
+    }
+
+    private void index() {
+        positions = new HashMap<>(hosts.length * 2);
+        dense = hosts.length == Participants.size();
+        for (int i = 0; i < hosts.length; i++) {
+            positions.put(hosts[i], i);
+            dense = dense && Participants.indexOf(hosts[i]) == i;
+        }
+    }
+
+    int positionOf(String node) {
+        Integer position = node == null ? null : positions.get(node);
+        return position == null ? -1 : position;
+    }
+
+    private int positionOf(Timestamp timestamp) {
+        int host = timestamp.getHostIndex();
+        return dense && host != Participants.UNKNOWN ? host : positionOf(timestamp.getHostid());
+    }
+
+    /**
+     * @return true if both vectors have the same participants in the same positions
+     */
+    boolean sameLayout(TimestampVector other) {
+        return hosts == other.hosts || (dense && other.dense) || Arrays.equals(hosts, other.hosts);
+    }
+
+    // positional access for TimestampMatrix, which uses the same layout
+
+    String[] hosts() {
+        return hosts;
+    }
+
+    long seqAt(int i) {
+        return seqs.get(i);
+    }
+
+    int size() {
+        return hosts.length;
+    }
+
+    /**
+     * @return an immutable copy of this vector with the sequence numbers
+     * of the given positions replaced (see SummaryAckDelta)
+     */
+    TimestampVector withEntries(int[] positions, long[] values) {
+        TimestampVector copy = new TimestampVector(this);
+        for (int i = 0; i < positions.length; i++) {
+            copy.seqs.set(positions[i], values[i]);
+        }
+        copy.frozen = true;
+        return copy;
+    }
+
+    void setAt(int i, long seq) {
+        checkMutable();
+        if (seqs.getAndSet(i, seq) != seq) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Raises position i to seq if seq is newer.
+     */
+    private void raise(int i, long seq) {
+        checkMutable();
+        long current;
+        while ((current = seqs.get(i)) < seq) {
+            if (seqs.compareAndSet(i, current, seq)) {
+                version.incrementAndGet();
+                return;
+            }
+            // retry: another thread updated the position
+        }
+    }
+
+    /**
+     * Lowers position i to seq if seq is older.
+     */
+    private void lower(int i, long seq) {
+        checkMutable();
+        long current;
+        while ((current = seqs.get(i)) > seq) {
+            if (seqs.compareAndSet(i, current, seq)) {
+                version.incrementAndGet();
+                return;
             }
-        } finally {
-            lock.writeLock().unlock();
+            // retry: another thread updated the position
         }
     }
 
     /**
      * Updates the timestamp in the vector if it is more recent.
-     * 
+     *
      * @param timestamp the new timestamp to potentially update the vector with
      */
     public void updateTimestamp(Timestamp timestamp) {
@@ -40,27 +212,32 @@ public class TimestampVector implements Serializable {
             return;
         }
 
-        // Update the timestamp for the host ID if the new timestamp is more recent
-        timestampVector.compute(timestamp.getHostid(), (id, currentTS) -> {
-            if (currentTS == null || timestamp.compare(currentTS) > 0) {
-                return timestamp;
-            }
-            return currentTS;
-        });
+        int i = positionOf(timestamp);
+        if (i < 0) {
+            LSimLogger.log(Level.WARN, "Timestamp of a host that is not a participant: " + timestamp);
+            return;
+        }
+        // Update the timestamp for the host if the new timestamp is more recent
+        raise(i, timestamp.getSeqnumber());
     }
 
     /**
-     * Returns the ConcurrentHashMap containing all timestamps.
-     * 
+     * Returns a copy of the vector as a map from host ID to its last timestamp.
+     * Compatibility view: it is not updated when the vector changes.
+     *
      * @return the map of host IDs to their respective timestamps
      */
-    public ConcurrentHashMap<String, Timestamp> getTimestamps() {
-        return timestampVector;
+    public Map<String, Timestamp> getTimestamps() {
+        Map<String, Timestamp> timestamps = new LinkedHashMap<>();
+        for (int i = 0; i < hosts.length; i++) {
+            timestamps.put(hosts[i], new Timestamp(hosts[i], seqs.get(i)));
+        }
+        return timestamps;
     }
 
     /**
      * Updates the timestamp for a specific participant.
-     * 
+     *
      * @param participant the ID of the participant
      * @param timestamp the new timestamp to set for the participant
      */
@@ -69,13 +246,15 @@ public class TimestampVector implements Serializable {
             // Do nothing if either the participant or timestamp is null
             return;
         }
-        // Update the timestamp for the given participant
-        timestampVector.put(participant, timestamp);
+        int i = positionOf(participant);
+        if (i >= 0) {
+            setAt(i, timestamp.getSeqnumber());
+        }
     }
 
     /**
      * Merges the received vector, keeping the maximum for each hostId.
-     * 
+     *
      * @param tsVector the incoming TimestampVector to merge with
      */
     public void updateMax(TimestampVector tsVector) {
@@ -85,29 +264,47 @@ public class TimestampVector implements Serializable {
             return;
         }
 
-        // For each entry in the incoming vector, update the local vector with the maximum timestamp
-        tsVector.timestampVector.forEach((id, incomingTS) -> timestampVector.compute(id,
-                (key, localTS) -> {
-                    if (incomingTS != null && (localTS == null || incomingTS.compare(localTS) > 0)) {
-                        return incomingTS;
-                    }
-                    return localTS;
-                }));
+        // For each position of the incoming vector, keep the maximum sequence number
+        if (sameLayout(tsVector)) {
+            for (int i = 0; i < hosts.length; i++) {
+                raise(i, tsVector.seqs.get(i));
+            }
+        } else {
+            for (int j = 0; j < tsVector.hosts.length; j++) {
+                int i = positionOf(tsVector.hosts[j]);
+                if (i >= 0) {
+                    raise(i, tsVector.seqs.get(j));
+                }
+            }
+        }
     }
 
     /**
      * Returns the last known timestamp for the given node.
-     * 
+     * Compatibility view: a Timestamp is created on each call; use
+     * getLastSeqnumber to read the sequence number only.
+     *
      * @param node the ID of the node
-     * @return the last known timestamp for the node
+     * @return the last known timestamp for the node (null if the node is not a participant)
      */
     public Timestamp getLast(String node) {
-        return timestampVector.get(node);
+        int i = positionOf(node);
+        return i < 0 ? null : new Timestamp(hosts[i], seqs.get(i));
+    }
+
+    /**
+     * @param node the ID of the node
+     * @return the last sequence number known for the node, or
+     *         Timestamp.NULL_TIMESTAMP_SEQ_NUMBER if the node is not a participant
+     */
+    public long getLastSeqnumber(String node) {
+        int i = positionOf(node);
+        return i < 0 ? Timestamp.NULL_TIMESTAMP_SEQ_NUMBER : seqs.get(i);
     }
 
     /**
      * Merges the received vector, keeping the minimum for each hostId.
-     * 
+     *
      * @param tsVector the incoming TimestampVector to merge with
      */
     public void mergeMin(TimestampVector tsVector) {
@@ -117,24 +314,25 @@ public class TimestampVector implements Serializable {
             return;
         }
 
-        // For each entry in the incoming vector, update the local vector with the minimum timestamp
-        tsVector.timestampVector.forEach((id, incomingTS) -> timestampVector.compute(id,
-                (key, localTS) -> {
-                    if (incomingTS == null) {
-                        // If the incoming timestamp is null, keep the local one
-                        return localTS;
-                    }
-                    if (localTS == null || incomingTS.compare(localTS) < 0) {
-                        // If the local timestamp is null or greater, use the incoming one
-                        return incomingTS;
-                    }
-                    return localTS;
-                }));
+        // For each position of the incoming vector, keep the minimum sequence number
+        if (sameLayout(tsVector)) {
+            for (int i = 0; i < hosts.length; i++) {
+                lower(i, tsVector.seqs.get(i));
+            }
+        } else {
+            for (int j = 0; j < tsVector.hosts.length; j++) {
+                int i = positionOf(tsVector.hosts[j]);
+                if (i >= 0) {
+                    lower(i, tsVector.seqs.get(j));
+                }
+            }
+        }
     }
 
     /**
      * Updates the vector with the maximum timestamp for each hostId, with tolerance.
-     * 
+     * Same as updateMax.
+     *
      * @param tsVector the incoming TimestampVector to merge with
      */
     public void updateMaxWithTolerance(TimestampVector tsVector) {
@@ -143,45 +341,22 @@ public class TimestampVector implements Serializable {
             LSimLogger.log(Level.WARN, "Attempted to updateMaxWithTolerance with a null TimestampVector.");
             return;
         }
-
-        // For each entry in the incoming vector, update the local vector with the maximum timestamp
-        tsVector.timestampVector.forEach((id, incomingTS) -> timestampVector.compute(id,
-                (key, localTS) -> {
-                    if (incomingTS == null) {
-                        // If the incoming timestamp is null, keep the local one
-                        return localTS;
-                    }
-                    if (localTS == null || incomingTS.compare(localTS) > 0) {
-                        // If the local timestamp is null or smaller, use the incoming one
-                        return incomingTS;
-                    }
-                    return localTS;
-                }));
+        updateMax(tsVector);
     }
 
     /**
      * Returns a clone of this TimestampVector.
-     * 
+     *
      * @return a new TimestampVector that is a copy of this one
      */
     @Override
     public TimestampVector clone() {
-        lock.readLock().lock();
-        try {
-            // Create a new TimestampVector with the same keys
-            TimestampVector cloned = new TimestampVector(
-                    Arrays.asList(timestampVector.keySet().toArray(new String[0])));
-            // Copy each timestamp to the new vector
-            timestampVector.forEach(cloned.timestampVector::put);
-            return cloned;
-        } finally {
-            lock.readLock().unlock();
-        }
+        return new TimestampVector(this);
     }
 
     /**
      * Checks equality between two TimestampVectors.
-     * 
+     *
      * @param obj the object to compare with
      * @return true if the vectors are equal, false otherwise
      */
@@ -192,14 +367,47 @@ public class TimestampVector implements Serializable {
         if (obj == null || getClass() != obj.getClass())
             return false;
 
-        lock.readLock().lock();
-        try {
-            // Compare the internal maps for equality
-            TimestampVector comp = (TimestampVector) obj;
-            return timestampVector.equals(comp.timestampVector);
-        } finally {
-            lock.readLock().unlock();
+        TimestampVector comp = (TimestampVector) obj;
+        if (!sameLayout(comp))
+            return false;
+        for (int i = 0; i < hosts.length; i++) {
+            if (seqs.get(i) != comp.seqs.get(i))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = hosts.length;
+        for (int i = 0; i < hosts.length; i++) {
+            hash = 31 * hash + seqs.get(i);
+        }
+        return Long.hashCode(hash);
+    }
+
+    /**
+     * Compact encoding: the hosts (see Participants.writeHosts) and the
+     * sequence numbers as variable-length integers, relative to
+     * Timestamp.NULL_TIMESTAMP_SEQ_NUMBER.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        Participants.writeHosts(out, hosts);
+        for (int i = 0; i < hosts.length; i++) {
+            VarInt.writeSigned(out, seqs.get(i) - Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        hosts = Participants.readHosts(in); // (its size is checked)
+        seqs = new AtomicLongArray(hosts.length);
+        for (int i = 0; i < hosts.length; i++) {
+            seqs.set(i, VarInt.readSigned(in) + Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
         }
+        version = new AtomicLong();
+        index();
     }
 
     /**
@@ -207,13 +415,10 @@ public class TimestampVector implements Serializable {
      */
     @Override
     public String toString() {
-        lock.readLock().lock();
-        try {
-            StringBuilder sb = new StringBuilder();
-            timestampVector.forEach((key, ts) -> sb.append(ts != null ? ts.toString() : "null").append("\n"));
-            return sb.toString();
-        } finally {
-            lock.readLock().unlock();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < hosts.length; i++) {
+            sb.append(hosts[i]).append(":   ").append(seqs.get(i)).append("\n");
         }
+        return sb.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,199 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package recipes_service.tsae.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
+import recipes_service.data.Operation;
+import util.Serializer;
+
+/**
+ * Write-ahead journal of the operations added to the Log.
+ *
+ * Operations are appended to memory-mapped segment files
+ * (journal-<generation>-<n>.seg). Each record is the length of the
+ * serialized operation followed by its bytes; a zero length marks the
+ * end of the written part of a segment (mapped files are zero-filled).
+ * Writes to the mapping survive a crash of the process; force() flushes
+ * them to disk.
+ *
+ * A checkpoint rotates the journal to a new generation: once the
+ * checkpoint is stored, segments of older generations can be deleted.
+ */
+public class OperationJournal {
+
+	public static final int SEGMENT_BYTES = 4 * 1024 * 1024;
+
+	private final File folder;
+
+	private int generation;
+	private int segmentNumber;
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+
+	public OperationJournal(File folder, int generation) {
+		this.folder = folder;
+		this.generation = generation;
+		this.segmentNumber = 0;
+	}
+
+	/**
+	 * Appends an operation to the journal
+	 * @param op operation already added to the Log
+	 * @throws IOException
+	 */
+	public synchronized void append(Operation op) throws IOException {
+		byte[] bytes = Serializer.serialize(op);
+		if (4 + bytes.length + 4 > SEGMENT_BYTES) {
+			throw new IOException("Operation too large for a journal segment: " + bytes.length + " bytes");
+		}
+		if (buffer == null || buffer.remaining() < 4 + bytes.length + 4) {
+			nextSegment();
+		}
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	/**
+	 * Starts a new generation of the journal. Operations appended from
+	 * now on are not covered by the checkpoint that is going to be taken.
+	 * @return the new generation
+	 * @throws IOException
+	 */
+	public synchronized int rotate() throws IOException {
+		close();
+		generation++;
+		segmentNumber = 0;
+		return generation;
+	}
+
+	/**
+	 * Flushes the written records to disk
+	 */
+	public synchronized void force() {
+		if (buffer != null) {
+			buffer.force();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (buffer != null) {
+			buffer.force();
+			buffer = null;
+		}
+		if (file != null) {
+			file.close();
+			file = null;
+		}
+	}
+
+	/**
+	 * Deletes the segments of generations older than the given one
+	 * @param generation oldest generation to keep
+	 */
+	public void deleteOlderThan(int generation) {
+		for (File f : segments(folder)) {
+			if (generationOf(f) < generation && !f.delete()) {
+				LSimLogger.log(Level.WARN, "[OperationJournal] unable to delete " + f);
+			}
+		}
+	}
+
+	/**
+	 * Reads, in order, the operations stored in the segments of the
+	 * given generation and the newer ones
+	 * @param folder journal folder
+	 * @param generation first generation to read
+	 * @return the journaled operations
+	 * @throws IOException
+	 */
+	public static List<Operation> read(File folder, int generation) throws IOException {
+		List<Operation> ops = new ArrayList<Operation>();
+		for (File f : segments(folder)) {
+			if (generationOf(f) < generation) {
+				continue;
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+				MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				while (in.remaining() >= 4) {
+					int length = in.getInt();
+					if (length <= 0 || length > in.remaining()) {
+						break; // end of the written part (or a torn record)
+					}
+					byte[] bytes = new byte[length];
+					in.get(bytes);
+					try {
+						ops.add((Operation) Serializer.deserialize(bytes));
+					} catch (ClassNotFoundException | IOException e) {
+						LSimLogger.log(Level.WARN, "[OperationJournal] skipping unreadable record in " + f + ": " + e.getMessage());
+						break;
+					}
+				}
+			}
+		}
+		return ops;
+	}
+
+	/**
+	 * @param folder journal folder
+	 * @return the newest generation stored in the folder, or -1 if none
+	 */
+	public static int lastGeneration(File folder) {
+		int last = -1;
+		for (File f : segments(folder)) {
+			last = Math.max(last, generationOf(f));
+		}
+		return last;
+	}
+
+	private void nextSegment() throws IOException {
+		close();
+		File f = new File(folder, String.format("journal-%08d-%08d.seg", generation, segmentNumber++));
+		file = new RandomAccessFile(f, "rw");
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+	}
+
+	/**
+	 * @return journal segments in the folder, ordered by generation and number
+	 */
+	private static List<File> segments(File folder) {
+		File[] files = folder.listFiles((dir, name) -> name.startsWith("journal-") && name.endsWith(".seg"));
+		if (files == null) {
+			return new ArrayList<File>();
+		}
+		Arrays.sort(files); // names are zero-padded
+		return Arrays.asList(files);
+	}
+
+	private static int generationOf(File segment) {
+		return Integer.parseInt(segment.getName().substring("journal-".length(), "journal-".length() + 8));
+	}
+}
@@ -0,0 +1,192 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package recipes_service.tsae.persistence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import recipes_service.data.Operation;
+import recipes_service.data.Recipes;
+import recipes_service.tsae.data_structures.Log;
+import recipes_service.tsae.data_structures.Timestamp;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * Persistent state of a Server: periodic checkpoints of the TSAE data
+ * structures plus a write-ahead OperationJournal with the operations
+ * logged since the last checkpoint.
+ *
+ * Recovery loads the last checkpoint and then replays the journal
+ * generations that are not covered by it.
+ */
+public class StateStore {
+
+	private static final String CHECKPOINT = "checkpoint.dat";
+	private static final String CHECKPOINT_TMP = "checkpoint.tmp";
+
+	/**
+	 * Checkpointed state. journalGeneration is the first journal
+	 * generation whose operations are not included in it.
+	 */
+	public static class Checkpoint implements Serializable {
+		private static final long serialVersionUID = -1853419002630958166L;
+
+		private final int journalGeneration;
+		private final Log log;
+		private final TimestampVector summary;
+		private final TimestampMatrix ack;
+		private final Recipes recipes;
+		private final List<Timestamp> tombstones;
+
+		public Checkpoint(int journalGeneration, Log log, TimestampVector summary, TimestampMatrix ack, Recipes recipes, Collection<Timestamp> tombstones) {
+			this.journalGeneration = journalGeneration;
+			this.log = log;
+			this.summary = summary;
+			this.ack = ack;
+			this.recipes = recipes;
+			this.tombstones = new ArrayList<Timestamp>(tombstones);
+		}
+
+		public int getJournalGeneration() {
+			return journalGeneration;
+		}
+		public Log getLog() {
+			return log;
+		}
+		public TimestampVector getSummary() {
+			return summary;
+		}
+		public TimestampMatrix getAck() {
+			return ack;
+		}
+		public Recipes getRecipes() {
+			return recipes;
+		}
+		public List<Timestamp> getTombstones() {
+			return tombstones;
+		}
+	}
+
+	private final File folder;
+	private OperationJournal journal = null;
+
+	/**
+	 * @param folder folder where this server stores its state (created if needed)
+	 */
+	public StateStore(File folder) {
+		this.folder = folder;
+		folder.mkdirs();
+	}
+
+	/**
+	 * @return the last stored checkpoint, or null if there is none
+	 * @throws IOException
+	 */
+	public Checkpoint loadCheckpoint() throws IOException {
+		File f = new File(folder, CHECKPOINT);
+		if (!f.exists()) {
+			return null;
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(f))) {
+			return (Checkpoint) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unreadable checkpoint " + f, e);
+		}
+	}
+
+	/**
+	 * @param checkpoint last checkpoint (may be null)
+	 * @return operations journaled after the checkpoint was taken
+	 * @throws IOException
+	 */
+	public List<Operation> loadJournal(Checkpoint checkpoint) throws IOException {
+		return OperationJournal.read(folder, checkpoint == null ? 0 : checkpoint.getJournalGeneration());
+	}
+
+	/**
+	 * Opens the journal for appending, in a generation newer than any
+	 * stored one. Must be called once recovery has finished.
+	 * @param checkpoint last checkpoint (may be null)
+	 */
+	public synchronized void open(Checkpoint checkpoint) {
+		int generation = checkpoint == null ? 0 : checkpoint.getJournalGeneration();
+		// never append to the segments that have just been replayed
+		generation = Math.max(generation, OperationJournal.lastGeneration(folder) + 1);
+		journal = new OperationJournal(folder, generation);
+	}
+
+	/**
+	 * Journals an operation that has just been added to the Log
+	 * @param op
+	 * @throws IOException
+	 */
+	public void append(Operation op) throws IOException {
+		OperationJournal j = journal;
+		if (j != null) {
+			j.append(op);
+		}
+	}
+
+	/**
+	 * Starts a new journal generation. It has to be called atomically
+	 * with taking the state that will be checkpointed.
+	 * @return the generation to store in the checkpoint
+	 * @throws IOException
+	 */
+	public int rotate() throws IOException {
+		return journal.rotate();
+	}
+
+	/**
+	 * Atomically replaces the stored checkpoint and deletes the journal
+	 * generations it covers
+	 * @param generation journal generation of the checkpoint (see rotate)
+	 * @param checkpoint serialized Checkpoint
+	 * @throws IOException
+	 */
+	public void store(int generation, byte[] checkpoint) throws IOException {
+		File tmp = new File(folder, CHECKPOINT_TMP);
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(checkpoint);
+			out.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(folder, CHECKPOINT).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		journal.deleteOlderThan(generation);
+	}
+
+	public void close() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import recipes_service.activity_simulation.SimulationData;
+import recipes_service.communication.Host;
+import communication.ObjectInputStream_DS;
+import communication.ObjectOutputStream_DS;
+
+/**
+ * Connections to partners used by the originator side of TSAE sessions.
+ *
+ * With pooling on, a connection that has carried a complete session is
+ * kept (per partner Host) and the next session with the partner runs on
+ * it, one session after another, so it saves the TCP handshake and the
+ * set up of the object streams. The partner side serves the sessions of
+ * a connection until the originator closes it or leaves it idle for
+ * IDLE_TIMEOUT (see TSAESessionPartnerSide).
+ *
+ * A pooled connection is only reused if it is still healthy: open, idle
+ * for less than MAX_IDLE, and opened after the last disconnection of
+ * this Server (see SimulationData.getDisconnections); otherwise it is
+ * closed and a new one is opened. With pooling off every session opens
+ * its own connection and closes it at the end.
+ */
+public class ConnectionPool {
+
+    // the partner side closes a connection that has been idle for this time (ms)
+    public static final int IDLE_TIMEOUT = 60000;
+    // a pooled connection is not reused after this idle time (ms), so it
+    // is not reused while the partner is closing it
+    private static final long MAX_IDLE = IDLE_TIMEOUT / 2;
+    // idle connections kept for each partner
+    private static final int MAX_IDLE_PER_HOST = 2;
+
+    /**
+     * A connection to a partner and its object streams.
+     */
+    public static final class Channel {
+        private final Host host;
+        private final Socket socket;
+        private final ObjectInputStream_DS in;
+        private final ObjectOutputStream_DS out;
+        // disconnections of this Server when the connection was opened
+        private final long disconnections;
+        private long lastUsed;
+        private int sessions;
+
+        private Channel(Host host) throws IOException {
+            this.host = host;
+            this.disconnections = SimulationData.getInstance().getDisconnections();
+            this.socket = new Socket(host.getAddress(), host.getPort());
+            try {
+                this.in = new ObjectInputStream_DS(socket.getInputStream());
+                this.out = new ObjectOutputStream_DS(socket.getOutputStream());
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        public ObjectInputStream_DS getInputStream() {
+            return in;
+        }
+
+        public ObjectOutputStream_DS getOutputStream() {
+            return out;
+        }
+
+        /**
+         * @return true if the channel has already carried a session.
+         */
+        public boolean isReused() {
+            return sessions > 0;
+        }
+
+        private boolean isHealthy(long now) {
+            return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown()
+                    && disconnections == SimulationData.getInstance().getDisconnections()
+                    && now - lastUsed < MAX_IDLE;
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private final boolean pooling;
+    // partner -> idle connections (most recently used first)
+    private final Map<Host, Deque<Channel>> idle = new ConcurrentHashMap<>();
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    public ConnectionPool(boolean pooling) {
+        this.pooling = pooling;
+    }
+
+    /**
+     * Takes a healthy idle connection to the partner or, if there is
+     * none, opens a new one.
+     *
+     * @param host the partner.
+     * @return the connection, that must be given back with release or discard.
+     * @throws IOException if a new connection can not be opened.
+     */
+    public Channel acquire(Host host) throws IOException {
+        Deque<Channel> channels = pooling ? idle.get(host) : null;
+        if (channels != null) {
+            long now = System.currentTimeMillis();
+            while (true) {
+                Channel channel;
+                synchronized (channels) {
+                    channel = channels.pollFirst();
+                }
+                if (channel == null) {
+                    break;
+                }
+                if (channel.isHealthy(now)) {
+                    try {
+                        // the session does not refer to the objects of the previous one
+                        // (reset here, not on release, so the partner is not woken up
+                        // while the connection is idle)
+                        channel.out.reset();
+                        reused.incrementAndGet();
+                        return channel;
+                    } catch (IOException e) {
+                    }
+                }
+                channel.close();
+            }
+        }
+        return open(host);
+    }
+
+    /**
+     * Opens a new connection to the partner, without looking for an idle
+     * one (e.g. to retry a session whose pooled connection was broken).
+     *
+     * @param host the partner.
+     * @return the connection.
+     * @throws IOException if the connection can not be opened.
+     */
+    public Channel open(Host host) throws IOException {
+        Channel channel = new Channel(host);
+        opened.incrementAndGet();
+        return channel;
+    }
+
+    /**
+     * Gives back a connection whose session has finished correctly: it is
+     * kept for the next session with the partner (closed if pooling is off).
+     *
+     * @param channel the connection.
+     */
+    public void release(Channel channel) {
+        channel.sessions++;
+        channel.lastUsed = System.currentTimeMillis();
+        if (!pooling || !channel.isHealthy(channel.lastUsed)) {
+            channel.close();
+            return;
+        }
+        Deque<Channel> channels = idle.computeIfAbsent(channel.host, k -> new ArrayDeque<Channel>());
+        Channel evicted = null;
+        synchronized (channels) {
+            channels.addFirst(channel);
+            if (channels.size() > MAX_IDLE_PER_HOST) {
+                evicted = channels.pollLast();
+            }
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    /**
+     * Closes a connection whose session has failed.
+     *
+     * @param channel the connection (may be null).
+     */
+    public void discard(Channel channel) {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes all the idle connections.
+     */
+    public void close() {
+        for (Deque<Channel> channels : idle.values()) {
+            synchronized (channels) {
+                for (Channel channel : channels) {
+                    channel.close();
+                }
+                channels.clear();
+            }
+        }
+    }
+
+    /**
+     * @return number of connections opened.
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return number of sessions that have run on a pooled connection.
+     */
+    public long getReused() {
+        return reused.get();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package recipes_service.tsae.sessions;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import recipes_service.communication.MessageAErequest;
+import recipes_service.tsae.data_structures.SummaryAckDelta;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * Delta-encoded exchange of summary and ack between partners.
+ *
+ * For each partner, remembers the last state (summary and ack) sent to
+ * it that it is known to have received, and the last states received
+ * from it. A new state is sent as its differences with the last one the
+ * partner received (see SummaryAckDelta).
+ *
+ * A state sent becomes the base for the partner only once the session
+ * has finished (acknowledged); the receiver keeps the last RECEIVED
+ * states of each partner, so the base is still there if a session fails
+ * half-way. If the receiver does not find the base, it aborts the
+ * session (closing it); on any failure the sender forgets the states
+ * sent to the partner, so the next session sends the complete state.
+ * The states received are kept: they are still valid bases, and the
+ * partner may not have noticed the failure.
+ */
+public class DeltaExchange {
+
+    // states received from each partner that are kept as possible bases,
+    // and states sent to each partner waiting for the end of their session
+    private static final int RECEIVED = 4;
+    private static final int PENDING = 8;
+
+    private static final class State {
+        final long id;
+        final TimestampVector summary;
+        final TimestampMatrix ack;
+
+        State(long id, TimestampVector summary, TimestampMatrix ack) {
+            this.id = id;
+            this.summary = summary;
+            this.ack = ack;
+        }
+    }
+
+    private final String localId;
+    // ids of the states sent: unique for this process
+    private final AtomicLong nextStateId = new AtomicLong(System.nanoTime() & Long.MAX_VALUE);
+
+    // partner -> last state sent and acknowledged
+    private final Map<String, State> acknowledged = new ConcurrentHashMap<>();
+    // partner -> states sent in sessions that have not finished, by id
+    private final Map<String, Map<Long, State>> pending = new ConcurrentHashMap<>();
+    // partner -> last states received, by id
+    private final Map<String, Map<Long, State>> received = new ConcurrentHashMap<>();
+
+    private final AtomicLong deltasSent = new AtomicLong();
+    private final AtomicLong fullSent = new AtomicLong();
+
+    public DeltaExchange(String localId) {
+        this.localId = localId;
+    }
+
+    /**
+     * @return a map that only keeps the last max states put into it.
+     */
+    private static Map<Long, State> newest(final int max) {
+        return Collections.synchronizedMap(new LinkedHashMap<Long, State>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, State> eldest) {
+                return size() > max;
+            }
+        });
+    }
+
+    /**
+     * Builds the AE request that sends the summary and ack to a partner.
+     *
+     * @param partner id of the partner.
+     * @param summary snapshot of the local summary.
+     * @param ack snapshot of the local ack.
+     * @return the request, delta-encoded if possible.
+     */
+    public MessageAErequest request(String partner, TimestampVector summary, TimestampMatrix ack) {
+        long id = nextStateId.incrementAndGet();
+        if (id == SummaryAckDelta.NO_BASE) {
+            id = nextStateId.incrementAndGet();
+        }
+        State base = partner == null ? null : acknowledged.get(partner);
+        SummaryAckDelta state;
+        if (base == null) {
+            state = SummaryAckDelta.full(id, summary, ack);
+        } else {
+            state = SummaryAckDelta.diff(id, summary, ack, base.id, base.summary, base.ack);
+        }
+        (state.isDelta() ? deltasSent : fullSent).incrementAndGet();
+        if (partner == null) {
+            return new MessageAErequest(localId, state); // unknown partner: never a base
+        }
+        pending.computeIfAbsent(partner, k -> newest(PENDING)).put(id, new State(id, summary, ack));
+        return new MessageAErequest(localId, state);
+    }
+
+    /**
+     * Rebuilds the summary and ack of a request received from a partner
+     * and sets them in the request.
+     *
+     * @param partner id of the partner.
+     * @param request the request received.
+     * @return false if the request is a delta from a state that is not known.
+     * @throws IOException if the request is a delta that does not fit its
+     *         base state (the session is aborted, and the next one exchanges
+     *         the complete state).
+     */
+    public boolean resolve(String partner, MessageAErequest request) throws IOException {
+        SummaryAckDelta state = request.getState();
+        if (state == null) {
+            return true; // summary and ack sent without encoding
+        }
+        if (partner == null) {
+            return false;
+        }
+        Map<Long, State> states = received.computeIfAbsent(partner, k -> newest(RECEIVED));
+        TimestampVector summary;
+        TimestampMatrix ack;
+        if (state.isDelta()) {
+            State base = states.get(state.getBaseId());
+            if (base == null) {
+                return false;
+            }
+            try {
+                state.checkBase(base.summary, base.ack);
+            } catch (IOException e) {
+                // do not build on the states of a partner that sends corrupt deltas
+                received.remove(partner);
+                throw e;
+            }
+            summary = state.summary(base.summary);
+            ack = state.ack(base.ack);
+        } else {
+            summary = state.summary(null);
+            ack = state.ack(null);
+        }
+        states.put(state.getStateId(), new State(state.getStateId(), summary, ack));
+        request.setSummaryAck(summary, ack);
+        return true;
+    }
+
+    /**
+     * The partner has received the state sent in request: it becomes
+     * the base for the next requests to the partner.
+     *
+     * @param partner id of the partner.
+     * @param request a request built by request(partner, ...).
+     */
+    public void acknowledged(String partner, MessageAErequest request) {
+        Map<Long, State> states = partner == null ? null : pending.get(partner);
+        State state = states == null ? null : states.remove(request.getState().getStateId());
+        if (state != null) {
+            acknowledged.merge(partner, state, (current, sent) -> sent.id > current.id ? sent : current);
+        }
+    }
+
+    /**
+     * A session with the partner has failed: forget the states sent to
+     * it, so the next session sends the complete state.
+     *
+     * @param partner id of the partner.
+     */
+    public void failed(String partner) {
+        if (partner == null) {
+            return;
+        }
+        acknowledged.remove(partner);
+        pending.remove(partner);
+    }
+
+    /**
+     * @return number of requests sent as deltas.
+     */
+    public long getDeltasSent() {
+        return deltasSent.get();
+    }
+
+    /**
+     * @return number of requests sent with the complete state.
+     */
+    public long getFullSent() {
+        return fullSent.get();
+    }
+}
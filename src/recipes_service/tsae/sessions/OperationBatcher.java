@@ -0,0 +1,129 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import recipes_service.communication.Message;
+import recipes_service.communication.MessageOperation;
+import recipes_service.communication.MessageOperations;
+import recipes_service.communication.MsgType;
+import recipes_service.data.Operation;
+import communication.ObjectOutputStream_DS;
+
+/**
+ * Sends the operations of a TSAE session grouped in MessageOperations
+ * batches of at most maxOperations operations and (approximately)
+ * maxBytes bytes, so that the header of the message and the writeObject
+ * and readObject calls are paid once per batch instead of once per
+ * operation. An operation larger than maxBytes is sent in a batch of its
+ * own. With maxOperations <= 1 each operation is sent in its own
+ * MessageOperation, as without batching.
+ */
+public class OperationBatcher {
+
+    private final ObjectOutputStream_DS out;
+    private final int sessionNumber;
+    private final int maxOperations;
+    private final int maxBytes;
+
+    private List<Operation> batch = new ArrayList<Operation>();
+    private int batchBytes = 0;
+    private int sent = 0;
+
+    public OperationBatcher(ObjectOutputStream_DS out, int sessionNumber, int maxOperations, int maxBytes) {
+        this.out = out;
+        this.sessionNumber = sessionNumber;
+        this.maxOperations = maxOperations;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds an operation to the current batch; the batch is sent when it
+     * is full.
+     *
+     * @param op operation to send.
+     * @throws IOException
+     */
+    public void add(Operation op) throws IOException {
+        sent++;
+        if (maxOperations <= 1) {
+            Message msg = new MessageOperation(op);
+            msg.setSessionNumber(sessionNumber);
+            out.writeObject(msg);
+            return;
+        }
+        int size = MessageOperations.estimatedSize(op);
+        if (!batch.isEmpty() && batchBytes + size > maxBytes) {
+            flush();
+        }
+        batch.add(op);
+        batchBytes += size;
+        if (batch.size() >= maxOperations) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the operations added since the last batch (if any).
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Message msg = new MessageOperations(batch);
+        msg.setSessionNumber(sessionNumber);
+        out.writeObject(msg);
+        batch = new ArrayList<Operation>();
+        batchBytes = 0;
+    }
+
+    /**
+     * @return number of operations added.
+     */
+    public int getSent() {
+        return sent;
+    }
+
+    /**
+     * @param msg a message received.
+     * @return true if msg carries operations (one or a batch).
+     */
+    public static boolean carriesOperations(Message msg) {
+        return msg.type() == MsgType.OPERATION || msg.type() == MsgType.OPERATIONS;
+    }
+
+    /**
+     * @param msg a message that carries operations.
+     * @return the operations carried by msg, in order.
+     */
+    public static List<Operation> operations(Message msg) {
+        if (msg.type() == MsgType.OPERATIONS) {
+            return ((MessageOperations) msg).getOperations();
+        }
+        return Collections.singletonList(((MessageOperation) msg).getOperation());
+    }
+}
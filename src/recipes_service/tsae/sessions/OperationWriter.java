@@ -0,0 +1,102 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import recipes_service.ServerData;
+import recipes_service.communication.Message;
+import recipes_service.communication.MessageEndTSAE;
+import recipes_service.data.Operation;
+import recipes_service.tsae.data_structures.TimestampVector;
+import communication.ObjectOutputStream_DS;
+
+/**
+ * Writer side of a pipelined TSAE session: on a thread of its own,
+ * streams the operations that are newer than the partner's summary
+ * followed by the end of session message, while the session thread
+ * reads the operations sent by the partner. The output stream is only
+ * used by this thread until finish returns.
+ */
+class OperationWriter implements Runnable {
+
+    private final ObjectOutputStream_DS out;
+    private final ServerData serverData;
+    private final TimestampVector partnerSummary;
+    private final int sessionNumber;
+
+    private volatile IOException failure = null;
+    private volatile int sent = 0;
+    private Thread thread = null;
+
+    OperationWriter(ObjectOutputStream_DS out, ServerData serverData, TimestampVector partnerSummary, int sessionNumber) {
+        this.out = out;
+        this.serverData = serverData;
+        this.partnerSummary = partnerSummary;
+        this.sessionNumber = sessionNumber;
+    }
+
+    /**
+     * Starts writing on a session thread of its own (see SessionThreads)
+     */
+    void start() {
+        thread = serverData.getSessionThreads().start(this, "TSAESessionWriterThread");
+    }
+
+    public void run() {
+        try {
+            // Log readers take no lock (see Log)
+            Iterator<Operation> operations = serverData.getLog().iterateNewer(partnerSummary);
+            OperationBatcher batcher = new OperationBatcher(out, sessionNumber, serverData.getBatchSize(), serverData.getBatchBytes());
+            while (operations.hasNext()) {
+                batcher.add(operations.next());
+            }
+            batcher.flush();
+            sent = batcher.getSent();
+
+            Message msg = new MessageEndTSAE();
+            msg.setSessionNumber(sessionNumber);
+            out.writeObject(msg);
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Waits until all the operations and the end of session message have
+     * been written.
+     *
+     * @return number of operations sent.
+     * @throws IOException if writing has failed.
+     */
+    int finish() throws IOException {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while sending operations");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return sent;
+    }
+}
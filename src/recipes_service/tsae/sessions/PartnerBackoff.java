@@ -0,0 +1,106 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Back off of the originator side from partners that are busy.
+ *
+ * When a partner rejects a session (see SessionAdmission) no session is
+ * originated with it for a back-off time, that doubles with every
+ * rejection in a row (from one session period up to MAX_PERIODS periods)
+ * and is forgotten once a session with the partner finishes.
+ */
+class PartnerBackoff {
+
+    // maximum back off, in session periods
+    private static final int MAX_PERIODS = 16;
+
+    private static final class State {
+        final int rejections;
+        final long until;
+
+        State(int rejections, long until) {
+            this.rejections = rejections;
+            this.until = until;
+        }
+    }
+
+    private final long period;
+    // partner -> back off after its last rejection
+    private final Map<String, State> busy = new ConcurrentHashMap<>();
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * @param period period of the TSAE sessions (ms).
+     */
+    PartnerBackoff(long period) {
+        this.period = Math.max(1, period);
+    }
+
+    /**
+     * @param partner id of the partner.
+     * @return true if a session can be originated with the partner.
+     */
+    boolean allows(String partner) {
+        State state = busy.get(partner);
+        if (state == null || System.currentTimeMillis() >= state.until) {
+            return true;
+        }
+        skipped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * The partner has rejected a session.
+     *
+     * @param partner id of the partner.
+     * @return back-off time (ms).
+     */
+    long rejected(String partner) {
+        rejected.incrementAndGet();
+        State state = busy.compute(partner, (k, previous) -> {
+            int rejections = previous == null ? 1 : previous.rejections + 1;
+            long periods = Math.min(MAX_PERIODS, 1L << Math.min(rejections - 1, 30));
+            return new State(rejections, System.currentTimeMillis() + periods * period);
+        });
+        return state.until - System.currentTimeMillis();
+    }
+
+    /**
+     * A session with the partner has finished.
+     *
+     * @param partner id of the partner.
+     */
+    void finished(String partner) {
+        busy.remove(partner);
+    }
+
+    @Override
+    public String toString() {
+        return "Originator busy replies: " + rejected.get() + ", sessions skipped by back off: " + skipped.get();
+    }
+}
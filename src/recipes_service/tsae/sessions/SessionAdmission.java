@@ -0,0 +1,138 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission of the TSAE sessions served by the partner side.
+ *
+ * At most maxSessions sessions run at the same time; up to maxQueued more
+ * wait (at most QUEUE_TIMEOUT) for one of them to finish, and the rest are
+ * rejected: the originator receives a busy message (see MessageBusy) and
+ * backs off from this partner for a while (see PartnerBackoff). So, under
+ * load, the sessions that are served keep a bounded latency instead of all
+ * of them competing for the Server. With maxSessions 0 every session is
+ * admitted. A session served by a thread shared with other connections (a
+ * worker of PartnerSideSelector) never waits in the queue: it is rejected
+ * at once, as waiting would hold the worker.
+ */
+public class SessionAdmission {
+
+    // maximum time a session waits in the queue before being rejected (ms)
+    private static final long QUEUE_TIMEOUT = 1000;
+
+    private final int maxSessions;
+    private final int maxQueued;
+    private final Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param maxSessions maximum number of sessions served at the same time (0: no limit).
+     * @param maxQueued maximum number of sessions waiting to be served.
+     */
+    public SessionAdmission(int maxSessions, int maxQueued) {
+        this.maxSessions = maxSessions;
+        this.maxQueued = Math.max(0, maxQueued);
+        this.permits = maxSessions > 0 ? new Semaphore(maxSessions) : null;
+    }
+
+    /**
+     * Admits a new session, waiting in the queue if the limit has been
+     * reached (and the queue is not full).
+     *
+     * @param mayWait false if the session can not wait in the queue (its
+     *        thread serves other connections too).
+     * @return true if the session can be served (it must be given back
+     *         with release); false if it has to be rejected.
+     */
+    public boolean admit(boolean mayWait) {
+        if (permits == null || permits.tryAcquire()) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        if (!mayWait) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        if (waiting.incrementAndGet() > maxQueued) {
+            waiting.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        queued.incrementAndGet();
+        try {
+            if (permits.tryAcquire(QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                admitted.incrementAndGet();
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting.decrementAndGet();
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * A session admitted has finished.
+     */
+    public void release() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return number of sessions admitted.
+     */
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * @return number of sessions that have waited in the queue.
+     */
+    public long getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return number of sessions rejected (busy).
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Partner admission (max sessions: " + (maxSessions > 0 ? maxSessions : "no limit") + ", max queued: " + maxQueued
+                + ") admitted: " + getAdmitted() + ", queued: " + getQueued() + ", rejected: " + getRejected();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics of the TSAE sessions of one side (originator or partner):
+ * number of sessions, maximum number of sessions running at the same
+ * time, and latency percentiles (over the last SAMPLES sessions).
+ */
+public class SessionStats {
+
+    // latencies kept to compute the percentiles
+    private static final int SAMPLES = 4096;
+
+    private final String name;
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final AtomicLong sessions = new AtomicLong();
+
+    // latencies of the last sessions (ns), as a ring indexed by the number
+    // of the session (0: the session has taken the slot but not written it yet)
+    private final AtomicLongArray latencies = new AtomicLongArray(SAMPLES);
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    public SessionStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * A session starts.
+     *
+     * @return start time, to be given to end.
+     */
+    public long start() {
+        int current = running.incrementAndGet();
+        peak.accumulateAndGet(current, Math::max);
+        return System.nanoTime();
+    }
+
+    /**
+     * A session (started at start) ends.
+     *
+     * @param start value returned by start.
+     */
+    public void end(long start) {
+        long latency = System.nanoTime() - start;
+        running.decrementAndGet();
+        // the counter gives each session a slot of its own
+        long slot = sessions.getAndIncrement();
+        latencies.set((int) (slot % SAMPLES), Math.max(1, latency));
+        maxLatency.accumulateAndGet(latency, Math::max);
+    }
+
+    /**
+     * @return maximum number of sessions that have run at the same time.
+     */
+    public int getPeak() {
+        return peak.get();
+    }
+
+    /**
+     * @return number of sessions that have ended.
+     */
+    public long getSessions() {
+        return sessions.get();
+    }
+
+    /**
+     * @param p percentile (0 to 100).
+     * @return latency (ms) of the p-th percentile of the last sessions.
+     */
+    public double percentile(double p) {
+        int n = (int) Math.min(sessions.get(), SAMPLES);
+        long[] sorted = new long[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            long latency = latencies.get(i);
+            if (latency > 0) {
+                sorted[count++] = latency;
+            }
+        }
+        sorted = Arrays.copyOf(sorted, count);
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        double max = maxLatency.get() / 1e6;
+        return String.format("%s sessions: %d, peak parallel: %d, latency (ms) p50: %.1f, p90: %.1f, p99: %.1f, max: %.1f",
+                name, getSessions(), getPeak(), percentile(50), percentile(90), percentile(99), max);
+    }
+}
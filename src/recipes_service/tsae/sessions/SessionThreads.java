@@ -0,0 +1,156 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
+
+/**
+ * Threads that run TSAE sessions (originator and partner sides, and the
+ * writers of pipelined sessions): platform threads, or virtual threads
+ * (Java 21), for which blocking socket I/O stays cheap with many
+ * sessions running at the same time.
+ *
+ * Virtual threads are created through reflection, so the code still
+ * compiles with older JDKs; if the runtime does not provide them,
+ * platform threads are used.
+ *
+ * Sessions apply operations holding the monitor of ServerData and, in
+ * Java 21, a virtual thread waiting for a monitor keeps its carrier
+ * thread, so with few processors the sessions may take all the carriers.
+ * Then the JVM has to be launched with more carriers, e.g.
+ * java -Djdk.virtualThreadScheduler.parallelism=4 ... (a warning is
+ * logged if it runs with fewer than MIN_CARRIERS).
+ */
+public class SessionThreads {
+
+    // minimum number of carrier threads of the virtual threads recommended
+    // for sessions (see above)
+    private static final int MIN_CARRIERS = 4;
+    private static final String PARALLELISM = "jdk.virtualThreadScheduler.parallelism";
+
+    private final boolean virtual;
+    // factories of the threads started by start, by name (so threads are numbered)
+    private final Map<String, ThreadFactory> factories = new ConcurrentHashMap<>();
+
+    public SessionThreads(boolean virtual) {
+        boolean available = false;
+        if (virtual) {
+            try {
+                Thread.class.getMethod("ofVirtual");
+                available = true;
+                if (carriers() < MIN_CARRIERS) {
+                    LSimLogger.log(Level.WARN, "Virtual session threads with fewer than " + MIN_CARRIERS
+                            + " carrier threads: launch the JVM with -D" + PARALLELISM + "=" + MIN_CARRIERS);
+                }
+            } catch (NoSuchMethodException e) {
+                LSimLogger.log(Level.WARN, "Virtual threads are not available in this Java runtime: sessions run on platform threads");
+            }
+        }
+        this.virtual = available;
+    }
+
+    /**
+     * @return number of carrier threads of the virtual threads.
+     */
+    private static int carriers() {
+        String parallelism = System.getProperty(PARALLELISM);
+        if (parallelism != null) {
+            try {
+                return Integer.parseInt(parallelism.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return true if sessions run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @param name prefix of the names of the threads.
+     * @return a factory of (daemon, if platform) threads for sessions.
+     */
+    public ThreadFactory factory(final String name) {
+        if (virtual) {
+            try {
+                // Thread.ofVirtual().name(name + "-", 1).factory()
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Unable to create virtual threads", e);
+            }
+        }
+        return new ThreadFactory() {
+            private final AtomicInteger threads = new AtomicInteger(0);
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Starts a task on a thread of its own.
+     *
+     * @param task
+     * @param name prefix of the name of the thread (it is numbered).
+     * @return the thread started.
+     */
+    public Thread start(Runnable task, String name) {
+        Thread thread = factories.computeIfAbsent(name, this::factory).newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @param name prefix of the names of the threads.
+     * @return an executor that runs each task on a new thread (virtual) or
+     *         on a cached pool of platform threads.
+     */
+    public ExecutorService perTaskExecutor(String name) {
+        ThreadFactory factory = factory(name);
+        if (virtual) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, factory);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Unable to create virtual threads", e);
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+}
@@ -21,9 +21,15 @@
 package recipes_service.tsae.sessions;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import recipes_service.ServerData;
@@ -32,7 +38,6 @@ import recipes_service.communication.Host;
 import recipes_service.communication.Message;
 import recipes_service.communication.MessageAErequest;
 import recipes_service.communication.MessageEndTSAE;
-import recipes_service.communication.MessageOperation;
 import recipes_service.communication.MsgType;
 import recipes_service.data.Operation;
 import recipes_service.tsae.data_structures.TimestampMatrix;
@@ -58,11 +63,46 @@ import lsim.library.api.LSimLogger;
 public class TSAESessionOriginatorSide extends TimerTask {
     private static AtomicInteger session_number = new AtomicInteger(0);
 
+    // operations received from the partner that are applied together (see applyReceived)
+    private static final int APPLY_GROUP = 256;
+
     private ServerData serverData;
 
+    // runs the sessions with the partners of a round at the same time
+    // (null: sessions run one after another on the caller's thread)
+    private final ExecutorService sessionExecutor;
+    // virtual threads: limits the sessions running at the same time
+    private final Semaphore sessionPermits;
+    // partners that have rejected sessions because they were busy
+    private final PartnerBackoff backoff;
+
     public TSAESessionOriginatorSide(ServerData serverData) {
         super();
         this.serverData = serverData;
+        this.backoff = new PartnerBackoff(serverData.getSessionPeriod());
+        int parallelism = serverData.getSessionParallelism();
+        SessionThreads threads = serverData.getSessionThreads();
+        if (threads.isVirtual()) {
+            // every session runs on a virtual thread of its own
+            sessionExecutor = threads.perTaskExecutor("TSAEOriginatorSideThread");
+            sessionPermits = new Semaphore(Math.max(1, parallelism));
+        } else if (parallelism > 1) {
+            sessionExecutor = Executors.newFixedThreadPool(parallelism, threads.factory("TSAEOriginatorSideThread"));
+            sessionPermits = null;
+        } else {
+            sessionExecutor = null;
+            sessionPermits = null;
+        }
+    }
+
+    /**
+     * Stops the threads that run sessions in parallel (if any)
+     */
+    public void shutdown() {
+        LSimLogger.log(Level.INFO, "[" + serverData.getId() + "] " + backoff);
+        if (sessionExecutor != null) {
+            sessionExecutor.shutdown();
+        }
     }
 
     /**
@@ -76,14 +116,48 @@ public class TSAESessionOriginatorSide extends TimerTask {
      * This method performs num TSAE sessions
      * with num random servers
      * 
+     * With sessionParallelism > 1 the sessions run at the same time (at most
+     * sessionParallelism at once, shared by all the rounds) and the method
+     * returns once all of them have finished. With virtual session threads
+     * each session runs on a virtual thread of its own (with the same limit).
+     * 
      * @param num
      */
     public void sessionWithN(int num) {
         if (!SimulationData.getInstance().isConnected())
             return;
         List<Host> partnersTSAEsession = serverData.getRandomPartners(num);
-        for (Host n : partnersTSAEsession) {
-            sessionTSAE(n);
+        if (sessionExecutor == null || (sessionPermits == null && partnersTSAEsession.size() < 2)) {
+            for (Host n : partnersTSAEsession) {
+                sessionTSAE(n);
+            }
+            return;
+        }
+        List<Callable<Void>> sessions = new ArrayList<Callable<Void>>(partnersTSAEsession.size());
+        for (final Host n : partnersTSAEsession) {
+            sessions.add(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    if (sessionPermits == null) {
+                        sessionTSAE(n);
+                        return null;
+                    }
+                    sessionPermits.acquire();
+                    try {
+                        sessionTSAE(n);
+                    } finally {
+                        sessionPermits.release();
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            // waits until all the sessions of the round have finished
+            sessionExecutor.invokeAll(sessions);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException e) {
+            // the Server is stopping
         }
     }
 
@@ -98,94 +172,246 @@ public class TSAESessionOriginatorSide extends TimerTask {
         int current_session_number = session_number.incrementAndGet();
         if (n == null)
             return; // Exit if the partner server is null
+        if (!backoff.allows(n.getId()))
+            return; // The partner has been busy: back off from it
 
         // Log the start of the TSAE session
         LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] TSAE session");
+        long start = serverData.getOriginatorStats().start();
 
+        ConnectionPool pool = serverData.getConnectionPool();
+        ConnectionPool.Channel channel = null;
         try {
-            // Establish a socket connection to the partner server
-            Socket socket = new Socket(n.getAddress(), n.getPort());
-            ObjectInputStream_DS in = new ObjectInputStream_DS(socket.getInputStream());
-            ObjectOutputStream_DS out = new ObjectOutputStream_DS(socket.getOutputStream());
-
-            // Prepare and send the local summary and acknowledgment to the partner
-            TimestampVector localSummary;
-            TimestampMatrix localAck;
-            synchronized (serverData) {
-                localSummary = serverData.getSummary().clone(); // Clone the local summary
-                localAck = serverData.getAck().clone(); // Clone the local acknowledgment
-            }
-            Message msg = new MessageAErequest(localSummary, localAck);
-            msg.setSessionNumber(current_session_number);
-            out.writeObject(msg); // Send the message to the partner
-            LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent message: " + msg);
-
-            // Receive operations from the partner
-            msg = (Message) in.readObject();
-            LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] received message: " + msg);
-            while (msg.type() == MsgType.OPERATION) {
-                // Process each operation received
-                MessageOperation operationMsg = (MessageOperation) msg;
-                Operation operation = operationMsg.getOperation();
-                synchronized (serverData) {
-                    serverData.execOperation(operation); // Use execOperation to handle both add and remove
+            // Take a pooled connection to the partner server (or establish a new one)
+            channel = pool.acquire(n);
+            boolean finished;
+            try {
+                finished = session(channel, n, current_session_number);
+            } catch (IOException e) {
+                if (!channel.isReused() || !SimulationData.getInstance().isConnected()) {
+                    throw e;
                 }
-                msg = (Message) in.readObject(); // Read the next message
-                LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] received message: " + msg);
+                // the pooled connection was broken (e.g. closed by the partner): retry
+                // once on a new connection, that exchanges complete summary and ack
+                LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] pooled connection failed: " + e.getMessage());
+                serverData.getDeltaExchange().failed(n.getId());
+                pool.discard(channel);
+                channel = pool.open(n);
+                finished = session(channel, n, current_session_number);
             }
-
-            // Check if the received message is a summary and acknowledgment request
-            if (msg.type() == MsgType.AE_REQUEST) {
-                MessageAErequest partner = (MessageAErequest) msg;
-
-                // Retrieve operations that are newer than the partner's summary
-                List<Operation> newOperations;
-                synchronized (serverData) {
-                    newOperations = serverData.getLog().listNewer(partner.getSummary());
-                }
-
-                // Send the newer operations to the partner
-                if (newOperations != null) {
-                    for (Operation operation : newOperations) {
-                        MessageOperation operationMsg = new MessageOperation(operation);
-                        operationMsg.setSessionNumber(current_session_number);
-                        out.writeObject(operationMsg); // Send each operation
-                        LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent operation: " + operation);
-                    }
-                }
-
-                // Send an end of TSAE session message to the partner
-                msg = new MessageEndTSAE();
-                msg.setSessionNumber(current_session_number);
-                out.writeObject(msg);
-                LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent message: " + msg);
-
-                // Receive confirmation of the end of the session from the partner
-                msg = (Message) in.readObject();
-                LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] received message: " + msg);
-                if (msg.type() == MsgType.END_TSAE) {
-                    synchronized (serverData) {
-                        // Update the local summary and acknowledgment with the partner's data
-                        serverData.getSummary().updateMax(partner.getSummary());
-                        serverData.getAck().updateMax(partner.getAck());
-                        // Purge the log of acknowledged operations
-                        serverData.getLog().purgeLog(serverData.getAck());
-                        LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] updated summary and ack");
-                    }
-                }
+            if (finished) {
+                // the connection can carry the next session with n
+                pool.release(channel);
+            } else {
+                pool.discard(channel);
             }
-            socket.close(); // Close the socket connection
+            channel = null;
         } catch (ClassNotFoundException e) {
             // Log and handle the exception if a class is not found during deserialization
             LSimLogger.log(Level.FATAL, "[TSAESessionOriginatorSide] [session: " + current_session_number + "]" + e.getMessage());
             e.printStackTrace();
             System.exit(1); // Exit the program on fatal error
         } catch (IOException e) {
-            // Log a warning if an I/O exception occurs
+            // Log a warning if an I/O exception occurs; next session with n exchanges complete summary and ack
+            serverData.getDeltaExchange().failed(n.getId());
             LSimLogger.log(Level.WARN, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] IOException: " + e.getMessage());
+        } finally {
+            // an aborted session is also closed, so the partner does not wait for it
+            pool.discard(channel);
+            serverData.getOriginatorStats().end(start);
         }
 
         // Log the end of the TSAE session
         LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] End TSAE session");
     }
-}
\ No newline at end of file
+
+    /**
+     * Runs a TSAE session with the partner server n on a connection
+     * 
+     * @param channel connection to n
+     * @param n the partner server
+     * @param current_session_number
+     * @return true if the session has finished with the exchange of end messages
+     *         (the connection can carry another session)
+     */
+    private boolean session(ConnectionPool.Channel channel, Host n, int current_session_number) throws IOException, ClassNotFoundException {
+        ObjectInputStream_DS in = channel.getInputStream();
+        ObjectOutputStream_DS out = channel.getOutputStream();
+
+        // Prepare and send the local summary and acknowledgment to the partner
+        // Immutable snapshots: no lock and, unless they changed since the last session, no copy
+        TimestampVector localSummary = serverData.getSummary().snapshot();
+        // the own row of the ack is a copy of the summary: bring it up to date first
+        serverData.getAck().update(serverData.getId(), localSummary);
+        TimestampMatrix localAck = serverData.getAck().snapshot();
+        // Only the differences with the last summary and ack received by the partner are sent
+        MessageAErequest request = serverData.getDeltaExchange().request(n.getId(), localSummary, localAck);
+        request.setStability(serverData.getStabilityToSend());
+        request.setPipelined(serverData.isPipelinedSessions());
+        Message msg = request;
+        msg.setSessionNumber(current_session_number);
+        out.writeObject(msg); // Send the message to the partner
+        LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent message: " + msg);
+        if (request.isPipelined()) {
+            return pipelinedSession(in, out, n, request, current_session_number);
+        }
+
+        // Receive operations from the partner
+        int duplicates = 0; // operations received that were already logged
+        msg = (Message) in.readObject();
+        LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] received message: " + msg);
+        if (msg.type() == MsgType.BUSY) {
+            return busy(n, current_session_number);
+        }
+        // The operations received (one or a batch per message) are applied in groups of
+        // APPLY_GROUP: a single critical section and summary and ack update per group
+        // (see execOperations), however the partner batches its messages
+        List<Operation> received = new ArrayList<Operation>(APPLY_GROUP);
+        while (OperationBatcher.carriesOperations(msg)) {
+            received.addAll(OperationBatcher.operations(msg));
+            if (received.size() >= APPLY_GROUP) {
+                duplicates += applyReceived(received);
+            }
+            msg = (Message) in.readObject(); // Read the next message
+            LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] received message: " + msg);
+        }
+        duplicates += applyReceived(received);
+
+        // Check if the received message is a summary and acknowledgment request
+        if (msg.type() != MsgType.AE_REQUEST) {
+            return false;
+        }
+        MessageAErequest partner = (MessageAErequest) msg;
+        if (!serverData.getDeltaExchange().resolve(n.getId(), partner)) {
+            throw new IOException("summary and ack received from an unknown state");
+        }
+
+        // Stream the operations that are newer than the partner's summary
+        // Log readers take no lock (see Log), so no need to hold serverData here
+        // (grouped in batches of operations, see OperationBatcher)
+        Iterator<Operation> newOperations = serverData.getLog().iterateNewer(partner.getSummary());
+        OperationBatcher batcher = new OperationBatcher(out, current_session_number, serverData.getBatchSize(), serverData.getBatchBytes());
+        while (newOperations.hasNext()) {
+            Operation operation = newOperations.next();
+            batcher.add(operation); // Send each operation
+            LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent operation: " + operation);
+        }
+        batcher.flush();
+
+        // Send an end of TSAE session message to the partner
+        msg = new MessageEndTSAE();
+        msg.setSessionNumber(current_session_number);
+        out.writeObject(msg);
+        LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent message: " + msg);
+
+        // Receive confirmation of the end of the session from the partner
+        msg = (Message) in.readObject();
+        LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] received message: " + msg);
+        if (msg.type() != MsgType.END_TSAE) {
+            return false;
+        }
+        endSession(n, request, partner, duplicates, current_session_number);
+        return true;
+    }
+
+    /**
+     * Pipelined variant of the session: the partner answers the AE request
+     * with its own one and then both sides stream their operations at the
+     * same time (the operations for the partner are written by an
+     * OperationWriter while this thread reads the partner's ones)
+     * 
+     * @param request AE request already sent to n
+     * @return true if the session has finished with the exchange of end messages
+     */
+    private boolean pipelinedSession(ObjectInputStream_DS in, ObjectOutputStream_DS out, Host n, MessageAErequest request, int current_session_number) throws IOException, ClassNotFoundException {
+        // Receive the partner's summary and ack
+        Message msg = (Message) in.readObject();
+        LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] received message: " + msg);
+        if (msg.type() == MsgType.BUSY) {
+            return busy(n, current_session_number);
+        }
+        if (msg.type() != MsgType.AE_REQUEST) {
+            return false;
+        }
+        MessageAErequest partner = (MessageAErequest) msg;
+        if (!serverData.getDeltaExchange().resolve(n.getId(), partner)) {
+            throw new IOException("summary and ack received from an unknown state");
+        }
+
+        // Stream the operations that are newer than the partner's summary (and the
+        // end of session message) while the operations of the partner are received
+        OperationWriter writer = new OperationWriter(out, serverData, partner.getSummary(), current_session_number);
+        writer.start();
+
+        int duplicates = 0; // operations received that were already logged
+        msg = (Message) in.readObject();
+        List<Operation> received = new ArrayList<Operation>(APPLY_GROUP);
+        while (OperationBatcher.carriesOperations(msg)) {
+            received.addAll(OperationBatcher.operations(msg));
+            if (received.size() >= APPLY_GROUP) {
+                duplicates += applyReceived(received);
+            }
+            msg = (Message) in.readObject();
+        }
+        duplicates += applyReceived(received);
+        LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] received message: " + msg);
+        if (msg.type() != MsgType.END_TSAE) {
+            // closing the connection stops the writer
+            return false;
+        }
+        int sent = writer.finish();
+        LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent operations: " + sent);
+
+        endSession(n, request, partner, duplicates, current_session_number);
+        return true;
+    }
+
+    /**
+     * Applies a group of operations received from the partner (see
+     * ServerData.execOperations) and empties it
+     * 
+     * @param received operations received and not applied yet
+     * @return number of operations that were already known
+     */
+    private int applyReceived(List<Operation> received) {
+        if (received.isEmpty()) {
+            return 0;
+        }
+        int duplicates = received.size() - serverData.execOperations(received);
+        received.clear();
+        return duplicates;
+    }
+
+    /**
+     * The partner n has rejected the session because it is overloaded (see
+     * SessionAdmission): no operations are exchanged and no sessions are
+     * originated with n for a back-off time (see PartnerBackoff)
+     * 
+     * @return true (the connection can carry another session)
+     */
+    private boolean busy(Host n, int current_session_number) {
+        long wait = backoff.rejected(n.getId());
+        LSimLogger.log(Level.DEBUG, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] partner " + n.getId() + " busy: backing off for " + wait + " ms");
+        return true;
+    }
+
+    /**
+     * Both sides have received the end of session message: update the local summary and
+     * ack with the partner's ones and purge the log
+     */
+    private void endSession(Host n, MessageAErequest request, MessageAErequest partner, int duplicates, int current_session_number) {
+        serverData.getDeltaExchange().acknowledged(n.getId(), request);
+        backoff.finished(n.getId());
+        synchronized (serverData) {
+            // Update the local summary and acknowledgment with the partner's data
+            serverData.getSummary().updateMax(partner.getSummary());
+            serverData.getAck().updateMax(partner.getAck());
+            serverData.getAck().update(serverData.getId(), serverData.getSummary());
+            LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] updated summary and ack");
+            LSimLogger.log(Level.DEBUG, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] rejected duplicate operations: " + duplicates);
+        }
+        serverData.mergeStability(partner.getStability());
+        // Purge the log of acknowledged operations (Log locks each host on its own)
+        serverData.purgeLog();
+    }
+}
@@ -20,12 +20,13 @@
 
 package recipes_service.tsae.sessions;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.net.Socket;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Vector;
 
 import communication.ObjectInputStream_DS;
 import communication.ObjectOutputStream_DS;
@@ -33,8 +34,8 @@ import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
 import recipes_service.ServerData;
 import recipes_service.communication.Message;
 import recipes_service.communication.MessageAErequest;
+import recipes_service.communication.MessageBusy;
 import recipes_service.communication.MessageEndTSAE;
-import recipes_service.communication.MessageOperation;
 import recipes_service.communication.MsgType;
 import recipes_service.data.Operation;
 import recipes_service.tsae.data_structures.TimestampMatrix;
@@ -47,109 +48,211 @@ import lsim.library.api.LSimLogger; //TODO check login system
  *         December 2012
  *
  */
-public class TSAESessionPartnerSide extends Thread {
+public class TSAESessionPartnerSide implements Runnable {
 
 	private Socket socket = null;
 	private ServerData serverData = null;
+	// id of the originator (known once its first AE request is received)
+	private String originatorId = null;
+
+	private ObjectOutputStream_DS out = null;
+	private ObjectInputStream_DS in = null;
+	// false if the thread serving the sessions is shared with other
+	// connections: then a session is never queued (see SessionAdmission)
+	private final boolean mayQueue;
 
 	public TSAESessionPartnerSide(Socket socket, ServerData serverData) {
-		super("TSAEPartnerSideThread");
+		this(socket, serverData, true);
+	}
+
+	public TSAESessionPartnerSide(Socket socket, ServerData serverData, boolean mayQueue) {
 		this.socket = socket;
 		this.serverData = serverData;
+		this.mayQueue = mayQueue;
 	}
 
 	public void run() {
+		// Serve the sessions of the originator until it closes the connection
+		// (a pooled connection carries one session after another; see ConnectionPool)
+		while (!serverData.end() && serveSession()) {
+		}
+		close();
+	}
 
-		Message msg = null;
-
-		int current_session_number = -1;
+	/**
+	 * Serves the next TSAE session of the connection (waiting for it if the
+	 * connection is idle). A thread or worker may serve each session of a
+	 * connection, but only one at a time.
+	 * 
+	 * @return true if the session has finished and the connection can carry
+	 *         another one; false if the connection has been closed (by the
+	 *         originator, because it was idle, or because the session failed)
+	 */
+	public boolean serveSession() {
 		try {
-			// Initialize output and input streams for communication
-			ObjectOutputStream_DS out = new ObjectOutputStream_DS(socket.getOutputStream());
-			ObjectInputStream_DS in = new ObjectInputStream_DS(socket.getInputStream());
-
-			// Synchronize to avoid interference between threads
-			TimestampVector localSummary;
-			TimestampMatrix localAck;
-
-			synchronized (serverData) {
-				// Clone the local summary and update the acknowledgment matrix
-				localSummary = this.serverData.getSummary().clone();
-				serverData.getAck().update(serverData.getId(), localSummary);
-				localAck = this.serverData.getAck().clone();
+			if (out == null) {
+				// a connection left idle by the originator is closed after IDLE_TIMEOUT
+				socket.setSoTimeout(ConnectionPool.IDLE_TIMEOUT);
+				// Initialize output and input streams for communication
+				out = new ObjectOutputStream_DS(socket.getOutputStream());
+				in = new ObjectInputStream_DS(socket.getInputStream());
 			}
-
-			// Receive request from originator and update local state
-			// First, receive originator's summary and ack
-			msg = (Message) in.readObject();
-			current_session_number = msg.getSessionNumber();
-
-			// Check if the message is an Anti Entropy Session Request
-			if (msg.type() == MsgType.AE_REQUEST) {
-				// Cast the message to MessageAErequest
-				MessageAErequest originator = (MessageAErequest) msg;
-				// Get operations that are newer than the originator's summary
-				List<Operation> operations = serverData.getLog().listNewer(originator.getSummary());
-
-				// Send operations to the originator
-				for (Operation op : operations) {
-					// Create a new operation message
-					msg = new MessageOperation(op);
-					// Set the session number for the message
-					msg.setSessionNumber(current_session_number);
-					// Send the message
-					out.writeObject(msg);
-				}
-
-				// Send local's summary and ack to the originator
-				msg = new MessageAErequest(localSummary, localAck);
-				msg.setSessionNumber(current_session_number);
-				out.writeObject(msg);
-
-				// Receive operations from the originator
-				List<Operation> ops = new ArrayList<Operation>(); // Create a list to store received operations
+			Message msg;
+			try {
 				msg = (Message) in.readObject();
-
-				// Process each received operation
-				while (msg.type() == MsgType.OPERATION) {
-					// Extract the operation from the message
-					Operation op = ((MessageOperation) msg).getOperation();
-					// Add the operation to the list
-					ops.add(op);
-					// Read the next message
-					msg = (Message) in.readObject();
-				}
-
-				// Check if the message indicates the end of the TSAE session
-				if (msg.type() == MsgType.END_TSAE) {
-					// Send an "end of TSAE session" message back to the originator
-					msg = new MessageEndTSAE();
-					msg.setSessionNumber(current_session_number);
-					out.writeObject(msg);
-
-					synchronized (serverData) {
-						// Execute each received operation
-						for (Operation op : ops) {
-							serverData.execOperation(op);
-							LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] executed operation: " + op);
-						}
-						// Update the local summary and acknowledgment matrix
-						serverData.getSummary().updateMax(originator.getSummary());
-						serverData.getAck().updateMax(originator.getAck());
-						// Purge the log based on the updated acknowledgment matrix
-						serverData.getLog().purgeLog(serverData.getAck());
-						LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] updated summary and ack");
-					}
-				}
+			} catch (EOFException | SocketTimeoutException e) {
+				// connection closed, or left idle, between sessions
+				close();
+				return false;
 			}
-			// Close the socket connection
-			socket.close();
+			SessionAdmission admission = serverData.getPartnerAdmission();
+			if (!admission.admit(mayQueue)) {
+				// overloaded: a fast busy reply, so the originator backs off
+				Message busy = new MessageBusy();
+				busy.setSessionNumber(msg.getSessionNumber());
+				out.writeObject(busy);
+				LSimLogger.log(Level.DEBUG, "[TSAESessionPartnerSide] [session: " + msg.getSessionNumber() + "] busy: session rejected");
+				return true;
+			}
+			long start = serverData.getPartnerStats().start();
+			boolean finished;
+			try {
+				finished = session(msg, in, out);
+			} finally {
+				serverData.getPartnerStats().end(start);
+				admission.release();
+			}
+			if (!finished) {
+				close();
+				return false;
+			}
+			// the next session does not refer to the objects of this one
+			out.reset();
+			return true;
 		} catch (ClassNotFoundException e) {
 			// Handle exception for class not found
 			e.printStackTrace();
 			System.exit(1);
 		} catch (IOException e) {
-			// Handle IO exception
+			// Handle IO exception: next session with the originator exchanges complete summary and ack
+			serverData.getDeltaExchange().failed(originatorId);
+		}
+		// an aborted session is also closed, so the originator does not wait for it
+		close();
+		return false;
+	}
+
+	/**
+	 * Closes the connection
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Serves a TSAE session
+	 * 
+	 * @param msg first message of the session, received from the originator
+	 * @param in
+	 * @param out
+	 * @return true if the session has finished with the exchange of end messages
+	 *         (the connection can carry another session)
+	 */
+	private boolean session(Message msg, ObjectInputStream_DS in, ObjectOutputStream_DS out) throws IOException, ClassNotFoundException {
+		int current_session_number = msg.getSessionNumber();
+
+		// Take immutable snapshots of the local summary and ack (no lock and,
+		// unless they changed since the last session, no copy)
+		TimestampVector localSummary = this.serverData.getSummary().snapshot();
+		serverData.getAck().update(serverData.getId(), localSummary);
+		TimestampMatrix localAck = this.serverData.getAck().snapshot();
+
+		// Receive request from originator and update local state
+		// First, receive originator's summary and ack
+		// Check if the message is an Anti Entropy Session Request
+		if (msg.type() != MsgType.AE_REQUEST) {
+			return false;
+		}
+		// Cast the message to MessageAErequest
+		MessageAErequest originator = (MessageAErequest) msg;
+		originatorId = originator.getSenderId();
+		if (!serverData.getDeltaExchange().resolve(originatorId, originator)) {
+			throw new IOException("summary and ack received from an unknown state");
+		}
+		// Send local's summary and ack to the originator (only the differences
+		// with the last ones it received)
+		MessageAErequest request = serverData.getDeltaExchange().request(originatorId, localSummary, localAck);
+		request.setStability(serverData.getStabilityToSend());
+		request.setSessionNumber(current_session_number);
+
+		OperationWriter writer = null;
+		if (originator.isPipelined()) {
+			// Pipelined session: answer with the local summary and ack first, and then
+			// stream the operations (and the end of session message) on a writer thread
+			// while the operations of the originator are received
+			out.writeObject(request);
+			writer = new OperationWriter(out, serverData, originator.getSummary(), current_session_number);
+			writer.start();
+		} else {
+			// Stream the operations that are newer than the originator's summary
+			// (grouped in batches of operations, see OperationBatcher)
+			Iterator<Operation> operations = serverData.getLog().iterateNewer(originator.getSummary());
+			OperationBatcher batcher = new OperationBatcher(out, current_session_number, serverData.getBatchSize(), serverData.getBatchBytes());
+			while (operations.hasNext()) {
+				batcher.add(operations.next());
+			}
+			batcher.flush();
+			out.writeObject(request);
+		}
+
+		// Receive operations from the originator
+		List<Operation> ops = new ArrayList<Operation>(); // Create a list to store received operations
+		msg = (Message) in.readObject();
+
+		// Process each received operation
+		while (OperationBatcher.carriesOperations(msg)) {
+			// Add the operations of the message (one or a batch) to the list
+			ops.addAll(OperationBatcher.operations(msg));
+			// Read the next message
+			msg = (Message) in.readObject();
+		}
+
+		// Check if the message indicates the end of the TSAE session
+		if (msg.type() != MsgType.END_TSAE) {
+			// (closing the connection stops the writer, if any)
+			return false;
+		}
+		if (writer != null) {
+			// the end of session message is sent by the writer
+			writer.finish();
+			serverData.getDeltaExchange().acknowledged(originatorId, request);
+		} else {
+			serverData.getDeltaExchange().acknowledged(originatorId, request);
+			// Send an "end of TSAE session" message back to the originator
+			msg = new MessageEndTSAE();
+			msg.setSessionNumber(current_session_number);
+			out.writeObject(msg);
+		}
+
+		// Execute the received operations as a group: the ones already known are
+		// skipped before locking, the rest in a single critical section (see execOperations)
+		int duplicates = ops.size() - serverData.execOperations(ops); // operations received that were already logged
+		LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] executed operations: " + (ops.size() - duplicates));
+		synchronized (serverData) {
+			// Update the local summary and acknowledgment matrix
+			serverData.getSummary().updateMax(originator.getSummary());
+			serverData.getAck().updateMax(originator.getAck());
+			serverData.getAck().update(serverData.getId(), serverData.getSummary());
+			LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] updated summary and ack");
+			LSimLogger.log(Level.DEBUG, "[TSAESessionPartnerSide] [session: " + current_session_number + "] rejected duplicate operations: " + duplicates);
 		}
+		serverData.mergeStability(originator.getStability());
+		// Purge the log based on the updated acknowledgment matrix or stability
+		// information (Log locks each host on its own)
+		serverData.purgeLog();
+		return true;
 	}
 }
@@ -0,0 +1,67 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package util;
+
+/**
+ * 64-bit hashing helpers used by the incremental digests of the Log and
+ * the Recipes (and by the digests of their operations and recipes).
+ *
+ * Values only depend on the hashed content (never on identity hash codes),
+ * so digests computed by different Servers can be compared.
+ * A digest of a set is the sum of the hashes of its elements: adding or
+ * removing an element only adds or subtracts its hash.
+ */
+public class Hash64 {
+
+	private static final long SEED = 0x9E3779B97F4A7C15L;
+
+	/**
+	 * Finalizer of SplitMix64: spreads the bits of x.
+	 */
+	public static long mix(long x) {
+		x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+		x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+		return x ^ (x >>> 31);
+	}
+
+	/**
+	 * Chains a value into a running hash (order dependent).
+	 */
+	public static long combine(long hash, long value) {
+		return mix(hash * 31 + value + SEED);
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of a string (0 for null).
+	 */
+	public static long of(String s) {
+		if (s == null) {
+			return 0;
+		}
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		return mix(h);
+	}
+}